@@ -0,0 +1,130 @@
+package benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import blocking.BlockPurging;
+import blocking.TokenDictionary;
+import blocking.Tokenizer;
+import matching.Exploratory;
+
+public class HotPaths {
+
+	/**
+	 * Benchmarks of the hot paths of blocking and matching, on seeded synthetic
+	 * data (see SyntheticRows): tokenizing rows while constructing BlockPurging,
+	 * buildValidCommonKeySet, buildBilateralBlocks (and the compact
+	 * buildCandidatePairs the matchers use), and Exploratory.computeJaccard over
+	 * several set sizes and overlap ratios. Run it before and after a change to
+	 * these classes, with the same arguments and JVM flags:
+	 *
+	 * java -Xms2g -Xmx2g benchmark.HotPaths [workFolder] [seed] [quick]
+	 *
+	 * The synthetic CSVs are written to workFolder (default: the temp folder).
+	 * quick runs fewer and smaller iterations, as a smoke test.
+	 */
+
+	static final int[] ROW_COUNTS={2000, 20000};
+	static final int[] SET_SIZES={4, 16, 64};
+	static final double[] OVERLAPS={0.1, 0.5, 0.9};
+
+	public static void main(String[] args) throws Exception{
+		String workFolder=args.length>0 ? args[0] : System.getProperty("java.io.tmpdir");
+		long seed=args.length>1 ? Long.parseLong(args[1]) : 2016;
+		boolean quick=args.length>2 && args[2].equals("quick");
+		MicroBenchmark heavy=quick ? new MicroBenchmark(1, 2) : new MicroBenchmark(3, 5);
+		MicroBenchmark light=quick ? new MicroBenchmark(2, 3) : new MicroBenchmark(5, 10);
+
+		benchmarkTokenizer(light, seed, quick ? 2000 : 20000);
+		for(int rows: ROW_COUNTS){
+			benchmarkBlocking(heavy, workFolder, seed, SyntheticRows.Source.FFIEC, rows,
+					SyntheticRows.Source.SEC, rows+rows/2);
+			benchmarkBlocking(heavy, workFolder, seed, SyntheticRows.Source.FFIEC, rows,
+					SyntheticRows.Source.LEI, 2*rows);
+		}
+		for(int size: SET_SIZES)
+			for(double overlap: OVERLAPS)
+				benchmarkJaccard(light, seed, size, overlap, quick ? 10000 : 200000);
+	}
+
+	static void benchmarkTokenizer(MicroBenchmark bench, long seed, int numFields) throws Exception{
+		SyntheticRows generator=new SyntheticRows(seed);
+		final ArrayList<String> fields=new ArrayList<String>(numFields);
+		for(int i=0; i<numFields; i++)
+			fields.add(generator.row(SyntheticRows.Source.SEC, i, generator.name()));
+		final Tokenizer tokenizer=new Tokenizer();
+		final Set<String> tokens=new HashSet<String>();
+		final int[] next={0};
+		bench.measure("Tokenizer.tokenize (one row)", numFields, new MicroBenchmark.Operation(){
+			public long run(){
+				tokens.clear();
+				tokenizer.tokenize(fields.get(next[0]++ % fields.size()), tokens);
+				return tokens.size();
+			}
+		});
+	}
+
+	static void benchmarkBlocking(MicroBenchmark bench, String workFolder, long seed,
+			SyntheticRows.Source source1, int rows1, SyntheticRows.Source source2, int rows2)
+			throws Exception{
+		final String file1=new File(workFolder, "bench-"+source1+"-"+rows1+".csv").getPath();
+		final String file2=new File(workFolder, "bench-"+source2+"-"+rows2+".csv").getPath();
+		new SyntheticRows(seed).writePair(file1, source1, rows1, file2, source2, rows2, 0.5);
+		String label=source1+"-"+source2+" "+rows1+"x"+rows2;
+
+		bench.measure("BlockPurging(file1, file2) "+label, 1, new MicroBenchmark.Operation(){
+			public long run(){
+				return new BlockPurging(file1, file2).getIDs2().size();
+			}
+		});
+		final BlockPurging obj=new BlockPurging(file1, file2);
+		bench.measure("buildValidCommonKeySet "+label, 1, new MicroBenchmark.Operation(){
+			public long run(){
+				return obj.buildValidCommonKeySet().size();
+			}
+		});
+		final Set<String> bkvs=obj.buildValidCommonKeySet();
+		bench.measure("buildBilateralBlocks "+label, 1, new MicroBenchmark.Operation(){
+			public long run(){
+				return obj.buildBilateralBlocks(bkvs).size();
+			}
+		});
+		bench.measure("buildCandidatePairs "+label, 1, new MicroBenchmark.Operation(){
+			public long run(){
+				return obj.buildCandidatePairs(bkvs).size();
+			}
+		});
+	}
+
+	static void benchmarkJaccard(MicroBenchmark bench, long seed, int size, double overlap,
+			int numOps) throws Exception{
+		SyntheticRows generator=new SyntheticRows(seed);
+		TokenDictionary dictionary=new TokenDictionary();
+		final int numPairs=64;
+		final ArrayList<List<Set<String>>> sets=new ArrayList<List<Set<String>>>(numPairs);
+		final ArrayList<int[][]> encoded=new ArrayList<int[][]>(numPairs);
+		for(int i=0; i<numPairs; i++){
+			List<Set<String>> pair=generator.setPair(size, overlap);
+			sets.add(pair);
+			encoded.add(new int[][]{dictionary.encode(pair.get(0)), dictionary.encode(pair.get(1))});
+		}
+		String label="size "+size+", overlap "+overlap;
+		final int[] next={0};
+		bench.measure("computeJaccard(Set, Set) "+label, numOps, new MicroBenchmark.Operation(){
+			public long run(){
+				List<Set<String>> pair=sets.get(next[0]++ % numPairs);
+				return Double.doubleToLongBits(Exploratory.computeJaccard(pair.get(0), pair.get(1)));
+			}
+		});
+		bench.measure("computeJaccard(int[], int[]) "+label, numOps, new MicroBenchmark.Operation(){
+			public long run(){
+				int[][] pair=encoded.get(next[0]++ % numPairs);
+				return Double.doubleToLongBits(Exploratory.computeJaccard(pair[0], pair[1]));
+			}
+		});
+	}
+
+}
@@ -0,0 +1,67 @@
+package benchmark;
+
+public class MicroBenchmark {
+
+	/**
+	 * A small stand-in for JMH, which this project cannot pull in. A benchmark
+	 * runs warmup iterations, which let the JIT compile the code under test, and
+	 * then measured iterations, each timing a fixed number of operations. Every
+	 * operation returns a value that is folded into a volatile sink, so that the
+	 * JIT cannot eliminate the work. Reports the mean and standard deviation of
+	 * the time per operation over the measured iterations.
+	 *
+	 * Like any in-process harness, results are only comparable within one JVM
+	 * configuration and machine; run with a fixed heap (-Xms = -Xmx) and compare
+	 * before/after numbers from the same run order.
+	 */
+
+	/*
+	 * One operation of a benchmark. The returned value must depend on the work.
+	 */
+	public interface Operation{
+		long run() throws Exception;
+	}
+
+	static volatile long sink;
+
+	int warmups;
+	int iterations;
+
+	public MicroBenchmark(int warmups, int iterations){
+		this.warmups=warmups;
+		this.iterations=iterations;
+	}
+
+	/*
+	 * Measures operation, and prints and returns the mean time in nanoseconds.
+	 */
+	public double measure(String name, int opsPerIteration, Operation operation) throws Exception{
+		for(int i=0; i<warmups; i++)
+			runIteration(opsPerIteration, operation);
+		double[] nanosPerOp=new double[iterations];
+		for(int i=0; i<iterations; i++)
+			nanosPerOp[i]=1.0*runIteration(opsPerIteration, operation)/opsPerIteration;
+
+		double mean=0;
+		for(double sample: nanosPerOp)
+			mean+=sample;
+		mean/=iterations;
+		double variance=0;
+		for(double sample: nanosPerOp)
+			variance+=(sample-mean)*(sample-mean);
+		double stddev=iterations>1 ? Math.sqrt(variance/(iterations-1)) : 0;
+		System.out.println(String.format("%-60s %14.1f ns/op  +- %10.1f", name, mean, stddev));
+		return mean;
+	}
+
+	private static long runIteration(int ops, Operation operation) throws Exception{
+		long result=0;
+		long start=System.nanoTime();
+		for(int i=0; i<ops; i++)
+			result+=operation.run();
+		long elapsed=System.nanoTime()-start;
+		sink+=result;
+		return elapsed;
+	}
+
+}
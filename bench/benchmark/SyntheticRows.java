@@ -0,0 +1,164 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class SyntheticRows {
+
+	/**
+	 * A seeded generator of CSV files shaped like the homogenized FFIEC, SEC and
+	 * LEI files: a header, then rows of ID, name, address, city, state and zip.
+	 * IDs follow each source (numeric RSSD IDs, CIKs, and 20 character LEIs).
+	 * Names mix a small vocabulary of very common banking words, which produce the
+	 * skewed tokens that purging has to cut, with a long tail of rare ones. A
+	 * given fraction of the rows of the second file reuse, slightly perturbed,
+	 * a name of the first, so that there is something to match. The same seed
+	 * always gives the same files.
+	 */
+
+	public enum Source{
+		FFIEC("IDRSSD"), SEC("CIK"), LEI("LEI");
+
+		String idColumn;
+
+		Source(String idColumn){
+			this.idColumn=idColumn;
+		}
+	}
+
+	static final String[] COMMON={"BANK", "TRUST", "NATIONAL", "FIRST", "OF", "THE", "CO",
+			"INC", "CORP", "HOLDING", "FINANCIAL", "GROUP", "SAVINGS", "STATE", "AMERICAN",
+			"CITIZENS", "UNION", "CAPITAL", "FEDERAL", "COMMUNITY"};
+	static final String[] SUFFIXES={"INC", "CORP.", "N.A.", "CO", "LLC", "& CO"};
+	static final String[] CITIES={"NEW YORK", "CHICAGO", "AUSTIN", "DALLAS", "BOSTON",
+			"CHARLOTTE", "SAN FRANCISCO", "ST. LOUIS"};
+	static final String[] STATES={"NY", "IL", "TX", "TX", "MA", "NC", "CA", "MO"};
+	static final String LEI_CHARS="ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+	Random random;
+	int rareWords;
+
+	public SyntheticRows(long seed){
+		this(seed, 20000);
+	}
+
+	/*
+	 * rareWords is the size of the long tail of the vocabulary.
+	 */
+	public SyntheticRows(long seed, int rareWords){
+		random=new Random(seed);
+		this.rareWords=rareWords;
+	}
+
+	public String word(){
+		if(random.nextDouble()<0.4)
+			return COMMON[random.nextInt(COMMON.length)];
+		return "W"+random.nextInt(rareWords);
+	}
+
+	public String name(){
+		StringBuilder name=new StringBuilder(word());
+		int length=1+random.nextInt(6);
+		for(int i=1; i<length; i++)
+			name.append(' ').append(word());
+		return name.toString();
+	}
+
+	/*
+	 * A variant of name, as another source might spell it.
+	 */
+	public String perturb(String name){
+		if(random.nextDouble()<0.5)
+			return name+" "+SUFFIXES[random.nextInt(SUFFIXES.length)];
+		if(random.nextDouble()<0.5)
+			return name.replace(' ', ',');
+		return name;
+	}
+
+	public String id(Source source, int index){
+		switch(source){
+		case FFIEC:
+			return Integer.toString(1000000+index);
+		case SEC:
+			return Integer.toString(2000000+index);
+		default:
+			StringBuilder lei=new StringBuilder(20);
+			for(int i=0; i<20; i++)
+				lei.append(LEI_CHARS.charAt(random.nextInt(LEI_CHARS.length())));
+			return lei.toString();
+		}
+	}
+
+	public String row(Source source, int index, String name){
+		int city=random.nextInt(CITIES.length);
+		return id(source, index)+","+quote(name)+","+(1+random.nextInt(9999))+" MAIN ST,"
+				+CITIES[city]+","+STATES[city]+","+String.format("%05d", random.nextInt(100000));
+	}
+
+	private static String quote(String field){
+		return field.indexOf(',')>=0 ? "\""+field+"\"" : field;
+	}
+
+	/*
+	 * Writes two files of rows1 and rows2 rows. A fraction overlap of the rows of
+	 * file2 take their name from a random row of file1.
+	 */
+	public void writePair(String file1, Source source1, int rows1, String file2, Source source2,
+			int rows2, double overlap) throws IOException{
+		ArrayList<String> names=new ArrayList<String>(rows1);
+		PrintWriter out=new PrintWriter(new File(file1));
+		try{
+			out.println(header(source1));
+			for(int i=0; i<rows1; i++){
+				names.add(name());
+				out.println(row(source1, i, names.get(i)));
+			}
+		}finally{
+			out.close();
+		}
+		out=new PrintWriter(new File(file2));
+		try{
+			out.println(header(source2));
+			for(int i=0; i<rows2; i++){
+				String name=random.nextDouble()<overlap ? perturb(names.get(random.nextInt(rows1))) : name();
+				out.println(row(source2, i, name));
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	private static String header(Source source){
+		return source.name()+"_"+source.idColumn+",NAME,ADDRESS,CITY,STATE,ZIP";
+	}
+
+	/*
+	 * Two token sets of the given size, of which about overlap*size tokens are
+	 * shared, for benchmarking the Jaccard computation.
+	 */
+	public List<Set<String>> setPair(int size, double overlap){
+		Set<String> set1=new HashSet<String>();
+		Set<String> set2=new HashSet<String>();
+		int shared=(int) Math.round(overlap*size);
+		while(set1.size()<shared){
+			String token=word().toLowerCase();
+			set1.add(token);
+			set2.add(token);
+		}
+		while(set1.size()<size)
+			set1.add(word().toLowerCase());
+		while(set2.size()<size)
+			set2.add(word().toLowerCase());
+		List<Set<String>> pair=new ArrayList<Set<String>>(2);
+		pair.add(set1);
+		pair.add(set2);
+		return pair;
+	}
+
+}
@@ -0,0 +1,177 @@
+package blocking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class AdaptivePurging {
+
+	/**
+	 * Chooses pairWiseThresh from the data, instead of using a fixed value, by
+	 * comparisons-based block purging (Papadakis et al.). Every common key is a
+	 * block with count1*count2 comparisons and count1+count2 block assignments.
+	 * Going down from the largest blocks, purging a level of block sizes is worth
+	 * it while it raises the ratio of assignments to comparisons of the remaining
+	 * blocks by at least the smoothing factor: a large block contributes many
+	 * comparisons for few assignments, i.e. few new chances of finding a match.
+	 * The cutoff is the size of the largest level that is kept, so that blocks
+	 * with up to that many comparisons remain valid.
+	 *
+	 * The counts are the ones buildValidCommonKeys already computes, and keys over
+	 * blockThresh are left out, as they are purged anyway. write reports the
+	 * distribution of block sizes, in power-of-two buckets, with what the cutoff
+	 * keeps of each.
+	 */
+
+	/*
+	 * The smoothing factor of the original method.
+	 */
+	public static final double DEFAULT_SMOOTHING_FACTOR=1.025;
+
+	BlockPurging obj;
+	double smoothingFactor;
+
+	/*
+	 * The blocks of the common keys by comparisons, with their number and total
+	 * assignments: comparisons -> {blocks, assignments}.
+	 */
+	TreeMap<Long, long[]> levels;
+	long cutoff;
+
+	public AdaptivePurging(BlockPurging obj){
+		this(obj, DEFAULT_SMOOTHING_FACTOR);
+	}
+
+	public AdaptivePurging(BlockPurging obj, double smoothingFactor){
+		this.obj=obj;
+		this.smoothingFactor=smoothingFactor;
+	}
+
+	/*
+	 * Builds the block-size distribution and chooses the cutoff, which is 0 if
+	 * there are no common keys.
+	 */
+	public long run(){
+		int[] counts1=obj.countTokens(obj.instances1);
+		int[] counts2=obj.countTokens(obj.instances2);
+		levels=new TreeMap<Long, long[]>();
+		for(int id=0; id<counts1.length; id++){
+			if(counts1[id]==0 || counts2[id]==0 || counts1[id]>obj.blockThresh || counts2[id]>obj.blockThresh)
+				continue;
+			long comparisons=(long) counts1[id]*counts2[id];
+			long[] level=levels.get(comparisons);
+			if(level==null){
+				level=new long[2];
+				levels.put(comparisons, level);
+			}
+			level[0]++;
+			level[1]+=counts1[id]+counts2[id];
+		}
+
+		int numLevels=levels.size();
+		cutoff=0;
+		if(numLevels==0)
+			return cutoff;
+		long[] sizes=new long[numLevels];
+		//cumulative assignments and comparisons of the blocks up to each level
+		double[] assignments=new double[numLevels];
+		double[] comparisons=new double[numLevels];
+		int i=0;
+		for(Map.Entry<Long, long[]> level: levels.entrySet()){
+			sizes[i]=level.getKey();
+			assignments[i]=(i>0 ? assignments[i-1] : 0)+level.getValue()[1];
+			comparisons[i]=(i>0 ? comparisons[i-1] : 0)+level.getValue()[0]*(double) level.getKey();
+			i++;
+		}
+		int kept=numLevels-1;
+		while(kept>0 && assignments[kept-1]*comparisons[kept]>=smoothingFactor*comparisons[kept-1]*assignments[kept])
+			kept--;
+		cutoff=sizes[kept];
+		return cutoff;
+	}
+
+	public long getCutoff(){
+		return cutoff;
+	}
+
+	/*
+	 * Sets the pairWiseThresh of obj to the cutoff, running first if need be.
+	 */
+	public void apply(){
+		if(levels==null)
+			run();
+		obj.pairWiseThresh=(int) Math.min(Integer.MAX_VALUE, cutoff);
+	}
+
+	/*
+	 * Prints the cutoff, and the blocks and comparisons it keeps.
+	 */
+	public void printSummary(){
+		if(levels==null)
+			run();
+		long blocks=0;
+		long keptBlocks=0;
+		double comparisons=0;
+		double keptComparisons=0;
+		for(Map.Entry<Long, long[]> level: levels.entrySet()){
+			double levelComparisons=level.getValue()[0]*(double) level.getKey();
+			blocks+=level.getValue()[0];
+			comparisons+=levelComparisons;
+			if(level.getKey()<=cutoff){
+				keptBlocks+=level.getValue()[0];
+				keptComparisons+=levelComparisons;
+			}
+		}
+		System.out.println("Adaptive pairWiseThresh is : "+cutoff);
+		System.out.println("Blocks kept : "+keptBlocks+" of "+blocks);
+		System.out.println("Block comparisons kept : "+(long) keptComparisons+" of "+(long) comparisons);
+	}
+
+	/*
+	 * Writes the distribution as a CSV with a header, one line per bucket of
+	 * comparisons per block [lowerBound, upperBound), for the non-empty buckets.
+	 */
+	public void write(PrintWriter out){
+		if(levels==null)
+			run();
+		out.println("lowerBound,upperBound,blocks,assignments,comparisons,keptBlocks,keptComparisons");
+		int numBuckets=64;
+		long[] blocks=new long[numBuckets];
+		long[] assignments=new long[numBuckets];
+		double[] comparisons=new double[numBuckets];
+		long[] keptBlocks=new long[numBuckets];
+		double[] keptComparisons=new double[numBuckets];
+		for(Map.Entry<Long, long[]> level: levels.entrySet()){
+			int bucket=63-Long.numberOfLeadingZeros(level.getKey());
+			double levelComparisons=level.getValue()[0]*(double) level.getKey();
+			blocks[bucket]+=level.getValue()[0];
+			assignments[bucket]+=level.getValue()[1];
+			comparisons[bucket]+=levelComparisons;
+			if(level.getKey()<=cutoff){
+				keptBlocks[bucket]+=level.getValue()[0];
+				keptComparisons[bucket]+=levelComparisons;
+			}
+		}
+		for(int bucket=0; bucket<numBuckets; bucket++)
+			if(blocks[bucket]>0)
+				out.println((1L<<bucket)+","+(bucket<62 ? Long.toString(1L<<(bucket+1)) : "")+","
+						+blocks[bucket]+","+assignments[bucket]+","+(long) comparisons[bucket]+","
+						+keptBlocks[bucket]+","+(long) keptComparisons[bucket]);
+	}
+
+	public void writeToFile(String outfile){
+		PrintWriter out=null;
+		try{
+			out=new PrintWriter(new File(outfile));
+			write(out);
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			if(out!=null)
+				out.close();
+		}
+	}
+
+}
@@ -0,0 +1,225 @@
+package blocking;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class BilateralBlocksFile {
+
+	/**
+	 * A compact binary counterpart of the tab-separated file written by
+	 * writeBilateralBlocksToFile. ID1s and ID2s are stored once each in sorted
+	 * string tables. Then, for every ID1 in order, the number of its ID2s is
+	 * followed by their table indices, delta-encoded as unsigned varints. Since
+	 * both tables are sorted, pairs come out in the same order as the lines and
+	 * columns of the text file.
+	 *
+	 * The layout is big-endian:
+	 * magic, version, number of pairs (long),
+	 * number of ID1s, ID1s, number of ID2s, ID2s,
+	 * then per ID1: varint count, varint first index, varint gaps.
+	 * Strings are stored as a byte count followed by UTF-8 bytes.
+	 */
+
+	static final int MAGIC=0x46454242;	//"FEBB"
+	static final int VERSION=1;
+	static final Charset UTF8=Charset.forName("UTF-8");
+
+	/*
+	 * Writes candidate pairs over the ID ordinals of ids1 and ids2. Only the IDs
+	 * that occur in some pair go into the string tables.
+	 */
+	public static void write(CandidatePairs pairs, SortedIDs ids1, SortedIDs ids2, 
+			String outfile) throws IOException{
+		ArrayList<String> ids1Table=new ArrayList<String>();
+		for(int start=0; start<pairs.size(); start=pairs.groupEnd(start))
+			ids1Table.add(ids1.getID(pairs.first(start)));
+		//ID2 ordinal -> index in the ID2 table, which keeps the sorted order
+		int[] ids2Index=new int[ids2.size()];
+		for(int i=0; i<pairs.size(); i++)
+			ids2Index[pairs.second(i)]=1;
+		ArrayList<String> ids2Table=new ArrayList<String>();
+		for(int ordinal=0; ordinal<ids2.size(); ordinal++)
+			if(ids2Index[ordinal]>0){
+				ids2Index[ordinal]=ids2Table.size();
+				ids2Table.add(ids2.getID(ordinal));
+			}
+
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(outfile), 1<<16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(pairs.size());
+			writeStrings(out, ids1Table);
+			writeStrings(out, ids2Table);
+			for(int start=0, end; start<pairs.size(); start=end){
+				end=pairs.groupEnd(start);
+				writeVarint(out, end-start);
+				int previous=0;
+				for(int i=start; i<end; i++){
+					int index=ids2Index[pairs.second(i)];
+					writeVarint(out, index-previous);
+					previous=index;
+				}
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	/*
+	 * Memory-maps a file written by write(), and iterates its pairs in order. The
+	 * string tables are decoded once when the file is opened; next() itself does
+	 * not allocate.
+	 */
+	public static class Reader{
+		ByteBuffer in;
+		long numPairs;
+		String[] ids1;
+		String[] ids2;
+
+		int id1Index=-1;
+		int remaining=0;
+		int id2Index;
+
+		public Reader(String file) throws IOException{
+			RandomAccessFile raf=new RandomAccessFile(file, "r");
+			try{
+				FileChannel channel=raf.getChannel();
+				if(channel.size()>Integer.MAX_VALUE)
+					throw new IOException("Bilateral blocks file too large to map: "+file);
+				in=channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}finally{
+				//the mapping stays valid after the channel is closed
+				raf.close();
+			}
+			if(in.getInt()!=MAGIC || in.getInt()!=VERSION)
+				throw new IOException("Not a version "+VERSION+" bilateral blocks file: "+file);
+			numPairs=in.getLong();
+			ids1=readStrings(in);
+			ids2=readStrings(in);
+		}
+
+		/*
+		 * Advances to the next pair; returns false when there are none left.
+		 */
+		public boolean next(){
+			while(remaining==0){
+				if(id1Index+1>=ids1.length)
+					return false;
+				id1Index++;
+				remaining=readVarint(in);
+				id2Index=0;
+			}
+			id2Index+=readVarint(in);
+			remaining--;
+			return true;
+		}
+
+		public int id1Index(){
+			return id1Index;
+		}
+
+		public int id2Index(){
+			return id2Index;
+		}
+
+		public String getId1(int index){
+			return ids1[index];
+		}
+
+		public String getId2(int index){
+			return ids2[index];
+		}
+
+		public long numPairs(){
+			return numPairs;
+		}
+
+		/*
+		 * Reads the remaining pairs as pairs of ordinals of ids1 and ids2, e.g. those
+		 * of the BlockPurging object the matcher is running on. Pairs whose IDs are
+		 * not in ids1 or ids2 are dropped.
+		 */
+		public CandidatePairs toCandidatePairs(SortedIDs ids1, SortedIDs ids2){
+			int[] ordinals1=new int[this.ids1.length];
+			for(int i=0; i<ordinals1.length; i++)
+				ordinals1[i]=ids1.ordinalOf(this.ids1[i]);
+			int[] ordinals2=new int[this.ids2.length];
+			for(int i=0; i<ordinals2.length; i++)
+				ordinals2[i]=ids2.ordinalOf(this.ids2[i]);
+			CandidatePairs.Builder builder=new CandidatePairs.Builder();
+			while(next())
+				if(ordinals1[id1Index]>=0 && ordinals2[id2Index]>=0)
+					builder.add(ordinals1[id1Index], ordinals2[id2Index]);
+			return builder.build();
+		}
+		
+		/*
+		 * Reads the remaining pairs into the map form of buildBilateralBlocks.
+		 */
+		public Map<String, Set<String>> toBilateralBlocks(){
+			Map<String, Set<String>> bilateralBlocks=new HashMap<String, Set<String>>();
+			while(next()){
+				Set<String> ids2=bilateralBlocks.get(ids1[id1Index]);
+				if(ids2==null){
+					ids2=new HashSet<String>();
+					bilateralBlocks.put(ids1[id1Index], ids2);
+				}
+				ids2.add(this.ids2[id2Index]);
+			}
+			return bilateralBlocks;
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, ArrayList<String> strings) throws IOException{
+		out.writeInt(strings.size());
+		for(String s: strings){
+			byte[] bytes=s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String[] readStrings(ByteBuffer in){
+		String[] strings=new String[in.getInt()];
+		for(int i=0; i<strings.length; i++){
+			byte[] bytes=new byte[in.getInt()];
+			in.get(bytes);
+			strings[i]=new String(bytes, UTF8);
+		}
+		return strings;
+	}
+
+	static void writeVarint(DataOutputStream out, int value) throws IOException{
+		while((value & ~0x7F)!=0){
+			out.write((value & 0x7F) | 0x80);
+			value>>>=7;
+		}
+		out.write(value);
+	}
+
+	static int readVarint(ByteBuffer in){
+		int value=0;
+		int shift=0;
+		byte b;
+		do{
+			b=in.get();
+			value|=(b & 0x7F)<<shift;
+			shift+=7;
+		}while((b & 0x80)!=0);
+		return value;
+	}
+
+}
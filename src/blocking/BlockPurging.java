@@ -5,15 +5,15 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 
-import general.CSVParser;
 import matching.JaccardMatcher;
+import metrics.Metrics;
 
 public class BlockPurging {
 	
@@ -33,10 +33,19 @@ public class BlockPurging {
 	/*
 	 * These two instances lists contain sets-of-words representations of instances
 	 * from the two files that are assumed as input. We consider sets since this
-	 * is only blocking. Note that IDs are not recorded herein.
+	 * is only blocking. Note that IDs are not recorded herein. Each set is stored
+	 * as a sorted array of token ids from the dictionary, which is shared by both
+	 * lists.
 	 */
-	ArrayList<Set<String>> instances1;
-	ArrayList<Set<String>> instances2;
+	ArrayList<int[]> instances1;
+	ArrayList<int[]> instances2;
+	TokenDictionary dictionary;
+	
+	/*
+	 * Lazily built from IDs1 and IDs2; see getSortedIDs{1,2}.
+	 */
+	SortedIDs sortedIDs1;
+	SortedIDs sortedIDs2;
 	
 	/*
 	 * These contain the list of IDs in the two files, always assumed to be
@@ -47,7 +56,9 @@ public class BlockPurging {
 	
 	
 	/*
-	 * The tokenizer was borrowed from hadoop/src/census/TSG2
+	 * The tokenizer was borrowed from hadoop/src/census/TSG2. Instances are now
+	 * tokenized in a single pass by Tokenizer; these regexes are kept as the
+	 * reference that test_tokenizerParity checks it against.
 	 */
 	static String[] tokenizer={"/", ",", ":", ";", "\\(", "\\)", "\\.", 
 			"\"", "_", "-", "#", "\\\\", "\\s+"};
@@ -58,6 +69,13 @@ public class BlockPurging {
 	int blockThresh=Integer.MAX_VALUE;
 	int pairWiseThresh=3000;
 	
+	/*
+	 * If set, load() keeps a binary snapshot of the parsed instances in this
+	 * folder (see InstanceSnapshot), so that repeated runs on the same inputs
+	 * skip parsing and tokenizing.
+	 */
+	static String snapshotFolder=null;
+	
 	static String rootFolder="C:\\Users\\Mayank\\SkyDrive\\Documents\\competitions\\feiii-2016\\feiii-data-20160202\\Data-and-Metadata\\homogenized\\";
 	
 	
@@ -86,14 +104,28 @@ public class BlockPurging {
 		System.out.println("Number of pairs in written out BilateralBlocks file is "+numPairs);
 	}
 	
+	protected static void test_writtenOutBinaryBilateralBlocks(){
+		long numPairs=0;
+		try{
+			BilateralBlocksFile.Reader in=new BilateralBlocksFile.Reader(rootFolder+"FFIEC-SEC-bilateralBlocks.bin");
+			while(in.next())
+				numPairs++;
+			System.out.println("Number of pairs recorded in header is "+in.numPairs());
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+		System.out.println("Number of pairs in written out binary BilateralBlocks file is "+numPairs);
+	}
+	
 	/*
 	 * This is not a test file.
 	 */
 	protected static void writeOutBilateralBlocks(){
 		BlockPurging obj=new BlockPurging(rootFolder+"FFIEC-homogenized.csv", 
 				rootFolder+"SEC-homogenized.csv");
-		obj.writeBilateralBlocksToFile(obj.buildValidCommonKeySet(),
-				rootFolder+"FFIEC-SEC-bilateralBlocks");
+		Set<String> bkvs=obj.buildValidCommonKeySet();
+		obj.writeBilateralBlocksToFile(bkvs, rootFolder+"FFIEC-SEC-bilateralBlocks");
+		obj.writeBilateralBlocksToBinaryFile(bkvs, rootFolder+"FFIEC-SEC-bilateralBlocks.bin");
 	}
 
 	/*
@@ -156,6 +188,245 @@ public class BlockPurging {
 		
 	}
 	
+	/*
+	 * Writes the RR/PC table of a threshold grid (see ThresholdSweep) to
+	 * FFIEC-SEC-thresholdSweep.csv, for tuning blockThresh and pairWiseThresh.
+	 */
+	protected static void test_thresholdSweep(){
+		Set<Integer> fieldsToPopulate=new HashSet<Integer>();
+		fieldsToPopulate.add(1);
+		
+		BlockPurging obj=new BlockPurging(rootFolder+"FFIEC-homogenized.csv", 
+				rootFolder+"SEC-homogenized.csv", fieldsToPopulate);
+		int[] blockThresholds={100, 500, 1000, 5000, Integer.MAX_VALUE};
+		int[] pairWiseThresholds={500, 1000, 3000, 10000, 30000};
+		ThresholdSweep sweep=new ThresholdSweep(obj, blockThresholds, pairWiseThresholds);
+		sweep.run(rootFolder+"ffiec-sec-partial-ground-truth.csv");
+		sweep.writeToFile(rootFolder+"FFIEC-SEC-thresholdSweep.csv");
+	}
+	
+	/*
+	 * Prints the pairWiseThresh chosen by AdaptivePurging, writes the block-size
+	 * distribution to FFIEC-SEC-blockSizes.csv, and prints the reduction ratio
+	 * and pairs completeness at that threshold.
+	 */
+	protected static void test_adaptivePurging(){
+		Set<Integer> fieldsToPopulate=new HashSet<Integer>();
+		fieldsToPopulate.add(1);
+		
+		BlockPurging obj=new BlockPurging(rootFolder+"FFIEC-homogenized.csv", 
+				rootFolder+"SEC-homogenized.csv", fieldsToPopulate);
+		AdaptivePurging purging=new AdaptivePurging(obj);
+		purging.apply();
+		purging.printSummary();
+		purging.writeToFile(rootFolder+"FFIEC-SEC-blockSizes.csv");
+		Set<String> bkvs=obj.buildValidCommonKeySet();
+		obj.printReductionRatio(bkvs);
+		obj.printPairsCompleteness(bkvs, rootFolder+"ffiec-sec-partial-ground-truth.csv");
+	}
+	
+	/*
+	 * Prints the reduction ratio and pairs completeness of the valid common keys,
+	 * and of every combination of meta-blocking weighting and pruning over them.
+	 */
+	protected static void test_metaBlocking(){
+		Set<Integer> fieldsToPopulate=new HashSet<Integer>();
+		fieldsToPopulate.add(1);
+		
+		BlockPurging obj=new BlockPurging(rootFolder+"FFIEC-homogenized.csv", 
+				rootFolder+"SEC-homogenized.csv", fieldsToPopulate);
+		Set<String> bkvs=obj.buildValidCommonKeySet();
+		obj.printReductionRatio(bkvs);
+		obj.printPairsCompleteness(bkvs, rootFolder+"ffiec-sec-partial-ground-truth.csv");
+		String[] weightings={"CBS", "ECBS", "JS"};
+		String[] prunings={"WEP", "CNP"};
+		for(int pruning=MetaBlocking.WEP; pruning<=MetaBlocking.CNP; pruning++)
+			for(int weighting=MetaBlocking.CBS; weighting<=MetaBlocking.JS; weighting++){
+				System.out.println(weightings[weighting]+" weights, "+prunings[pruning]+" pruning:");
+				CandidatePairs pairs=new MetaBlocking(obj, weighting, pruning).buildCandidatePairs(bkvs);
+				obj.printReductionRatio(pairs);
+				obj.printPairsCompleteness(pairs, rootFolder+"ffiec-sec-partial-ground-truth.csv");
+			}
+	}
+	
+	/*
+	 * The test is not rigorous. For a few band and row settings, prints the chance
+	 * of a pair at the 0.4 and 0.5 thresholds becoming a candidate, followed by the
+	 * reduction ratio and pairs completeness of the MinHash candidates.
+	 */
+	protected static void test_minHashBlocking(){
+		Set<Integer> fieldsToPopulate=new HashSet<Integer>();
+		fieldsToPopulate.add(1);
+		
+		BlockPurging obj=new BlockPurging(rootFolder+"FFIEC-homogenized.csv", 
+				rootFolder+"SEC-homogenized.csv", fieldsToPopulate);
+		int[][] settings={{10, 2}, {20, 3}, {30, 4}};
+		for(int[] setting: settings){
+			System.out.println("bands "+setting[0]+", rows "+setting[1]+": P(0.4) "
+					+MinHashBlocker.candidateProbability(0.4, setting[0], setting[1])+", P(0.5) "
+					+MinHashBlocker.candidateProbability(0.5, setting[0], setting[1]));
+			CandidatePairs pairs=new MinHashBlocker(obj, setting[0], setting[1]).buildCandidatePairs();
+			obj.printReductionRatio(pairs);
+			obj.printPairsCompleteness(pairs, rootFolder+"ffiec-sec-partial-ground-truth.csv");
+		}
+	}
+	
+	/*
+	 * Checks Tokenizer against the original replaceAll/split chain on random fields
+	 * drawn mostly from delimiters, whitespace and control characters, plus every
+	 * field of the FFIEC file. Prints the first few mismatches, if any.
+	 */
+	protected static void test_tokenizerParity(){
+		String alphabet="aZ9 \t\n\u000B\f\r\u0001\u001F/,:;().\"_-#\\\u00C9\u0130";
+		java.util.Random random=new java.util.Random(2016);
+		ArrayList<String> fields=new ArrayList<String>();
+		fields.add("");
+		for(int i=0; i<100000; i++){
+			StringBuilder field=new StringBuilder();
+			int length=random.nextInt(12);
+			for(int j=0; j<length; j++)
+				field.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			fields.add(field.toString());
+		}
+		Scanner in=null;
+		CsvScanner parser=new CsvScanner();
+		try{
+			in=new Scanner(new FileReader(rootFolder+"FFIEC-homogenized.csv"));
+			while(in.hasNextLine()){
+				parser.reset(in.nextLine());
+				for(int i=0; i<parser.numFields(); i++)
+					fields.add(parser.fieldString(i));
+			}
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			if(in!=null)
+				in.close();
+		}
+		
+		Tokenizer fieldTokenizer=new Tokenizer();
+		int mismatches=0;
+		for(String field: fields){
+			Set<String> expected=new HashSet<String>();
+			String tmp=field;
+			for(String t: tokenizer)
+				tmp=tmp.replaceAll(t, " ").trim();
+			for(String t: tmp.split(" "))
+				expected.add(t.toLowerCase());
+			Set<String> actual=new HashSet<String>();
+			fieldTokenizer.tokenize(field, actual);
+			if(!expected.equals(actual) && mismatches++<10)
+				System.out.println("Mismatch on field ["+field+"]: "+expected+" vs "+actual);
+		}
+		System.out.println("Tokenizer parity: "+mismatches+" mismatches in "+fields.size()+" fields");
+	}
+	
+	/*
+	 * Checks that every field subset selected from one ColumnarInstances has the
+	 * same IDs and token sets as a BlockPurging parsed for that subset.
+	 */
+	protected static void test_columnarInstances(){
+		String file1=rootFolder+"FFIEC-homogenized.csv";
+		String file2=rootFolder+"SEC-homogenized.csv";
+		ColumnarInstances columns=new ColumnarInstances(file1, file2);
+		int mismatches=0;
+		for(int subset=1; subset<32; subset++){
+			Set<Integer> fieldsToPopulate=new HashSet<Integer>();
+			for(int field=1; field<=5; field++)
+				if((subset & (1<<(field-1)))!=0)
+					fieldsToPopulate.add(field);
+			BlockPurging expected=new BlockPurging(file1, file2, fieldsToPopulate);
+			BlockPurging actual=columns.select(fieldsToPopulate);
+			if(!expected.IDs1.equals(actual.IDs1) || !expected.IDs2.equals(actual.IDs2))
+				mismatches++;
+			else{
+				for(int i=0; i<expected.instances1.size(); i++)
+					if(!expected.getInstances1(i).equals(actual.getInstances1(i)))
+						mismatches++;
+				for(int i=0; i<expected.instances2.size(); i++)
+					if(!expected.getInstances2(i).equals(actual.getInstances2(i)))
+						mismatches++;
+			}
+		}
+		System.out.println("Columnar instances: "+mismatches+" mismatches in 31 field subsets");
+	}
+	
+	/*
+	 * Checks PrefixFilterJoin against the bilateral blocks whose pairs pass the
+	 * threshold on the rows the matchers score, on random files in which most IDs
+	 * repeat, so that many pairs share a bkv only through an earlier row of an
+	 * ID. Prints the number of pairs found by only one of the two, per threshold.
+	 */
+	protected static void test_prefixFilterJoin(){
+		java.util.Random random=new java.util.Random(2016);
+		File file1=null;
+		File file2=null;
+		try{
+			file1=File.createTempFile("prefixFilterJoin", ".csv");
+			file2=File.createTempFile("prefixFilterJoin", ".csv");
+			writeRandomInstances(file1.getPath(), "a", random);
+			writeRandomInstances(file2.getPath(), "b", random);
+			BlockPurging obj=new BlockPurging(file1.getPath(), file2.getPath());
+			Set<String> bkvs=new HashSet<String>();
+			for(int word=0; word<40; word+=3)
+				bkvs.add("w"+word);
+			CandidatePairs blocked=obj.buildCandidatePairs(bkvs);
+			SortedIDs ids1=obj.getSortedIDs1();
+			SortedIDs ids2=obj.getSortedIDs2();
+			double[] thresholds={0.2, 0.3, 0.5};
+			for(double threshold: thresholds)
+				for(int strict=0; strict<2; strict++){
+					CandidatePairs.Builder builder=new CandidatePairs.Builder();
+					for(int i=0; i<blocked.size(); i++){
+						double jaccardScore=matching.Exploratory.computeJaccard(
+								obj.instances1.get(ids1.rowOf(blocked.first(i))), 
+								obj.instances2.get(ids2.rowOf(blocked.second(i))));
+						if(jaccardScore>threshold || (strict==0 && jaccardScore==threshold))
+							builder.add(blocked.first(i), blocked.second(i));
+					}
+					CandidatePairs expected=builder.build();
+					CandidatePairs actual=new PrefixFilterJoin(obj).join(threshold, strict==1, bkvs);
+					int mismatches=0;
+					for(int i=0; i<expected.size(); i++)
+						if(!actual.contains(expected.first(i), expected.second(i)))
+							mismatches++;
+					for(int i=0; i<actual.size(); i++)
+						if(!expected.contains(actual.first(i), actual.second(i)))
+							mismatches++;
+					System.out.println("Prefix filter join at "+threshold+(strict==1 ? " (strict): " : ": ")
+							+mismatches+" mismatches in "+expected.size()+" pairs");
+				}
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			if(file1!=null)
+				file1.delete();
+			if(file2!=null)
+				file2.delete();
+		}
+	}
+	
+	/*
+	 * Writes 400 rows over 150 IDs, each with a few words out of 40 per field.
+	 */
+	private static void writeRandomInstances(String file, String idPrefix, java.util.Random random) 
+			throws IOException{
+		PrintWriter out=new PrintWriter(file);
+		try{
+			out.println("id,name,addr,city,state,zip");
+			for(int row=0; row<400; row++){
+				StringBuilder line=new StringBuilder(idPrefix+random.nextInt(150));
+				for(int field=1; field<=5; field++){
+					line.append(',');
+					for(int word=random.nextInt(3); word>0; word--)
+						line.append("w"+random.nextInt(40)+" ");
+				}
+				out.println(line);
+			}
+		}finally{
+			out.close();
+		}
+	}
 	
 	/*
 	 * This method takes an arraylist of strings and returns an inverted index.
@@ -167,8 +438,10 @@ public class BlockPurging {
 		Map<String, Integer> IDMap = new HashMap<String, Integer>();
 		int count=0;
 		for(String id: IDs){
-			if(IDMap.containsKey(id))
+			if(IDMap.containsKey(id)){
 				System.out.println("Warning in buildIDMap. ID "+id+" occurs more than once");
+				Metrics.addCount("duplicateIDs", 1);
+			}
 		
 			IDMap.put(id, count);
 			count++;
@@ -189,29 +462,36 @@ public class BlockPurging {
 		
 		Map<String, Set<String>> goldSet=new HashMap<String, Set<String>>();
 		Scanner in=null;
+		CsvScanner fields=new CsvScanner();
 		try{
 			in=new Scanner(new FileReader(goldStandardFile));
 			if(in.hasNextLine())	//header; ignore it
 				in.nextLine();
 			while(in.hasNextLine()){
 				String line=in.nextLine();
-				String[] fields=(new CSVParser()).parseLine(line);
+				fields.reset(line);
 				if(pos){
-					if(fields[2].toLowerCase().equals("yes")){
-						if(!goldSet.containsKey(fields[0]))
-							goldSet.put(fields[0], new HashSet<String>());
-						goldSet.get(fields[0]).add(fields[1]);
+					if(fields.fieldEqualsIgnoreCase(2, "yes")){
+						String id1=fields.fieldString(0);
+						if(!goldSet.containsKey(id1))
+							goldSet.put(id1, new HashSet<String>());
+						goldSet.get(id1).add(fields.fieldString(1));
 						
-					}else if(!fields[2].toLowerCase().equals("no"))
+					}else if(!fields.fieldEqualsIgnoreCase(2, "no")){
 						System.out.println("Error in buildGoldSet. line: "+line);
+						Metrics.addCount("malformedGoldLines", 1);
+					}
 				}else{
-					if(fields[2].toLowerCase().equals("no")){
-						if(!goldSet.containsKey(fields[0]))
-							goldSet.put(fields[0], new HashSet<String>());
-						goldSet.get(fields[0]).add(fields[1]);
+					if(fields.fieldEqualsIgnoreCase(2, "no")){
+						String id1=fields.fieldString(0);
+						if(!goldSet.containsKey(id1))
+							goldSet.put(id1, new HashSet<String>());
+						goldSet.get(id1).add(fields.fieldString(1));
 						
-					}else if(!fields[2].toLowerCase().equals("yes"))
+					}else if(!fields.fieldEqualsIgnoreCase(2, "yes")){
 						System.out.println("Error in buildGoldSet. line: "+line);
+						Metrics.addCount("malformedGoldLines", 1);
+					}
 				}
 			}
 			
@@ -226,107 +506,88 @@ public class BlockPurging {
 	}
 
 	/*
-	 * The constructor is intended to populate the IDs and instances data structures.
+	 * Returns a BlockPurging object for the two files, considering the fields in
+	 * fieldsToPopulate, or all fields if it is null. If a snapshot folder is set, a
+	 * fresh snapshot is loaded instead of parsing, and a missing or stale one is
+	 * rewritten after parsing. Parsing uses the parallel loader if numThreads>1.
 	 */
-	public BlockPurging(String file1, String file2){
-		Scanner in=null;
-		
-		//read in first file
-		try{
-			//initialize
-			
-			in=new Scanner(new FileReader(file1));
-			instances1=new ArrayList<Set<String>>();
-			IDs1=new ArrayList<String>();
-			
-			//bypass header
-			
-			if(in.hasNextLine())
-				in.nextLine();
-			
-			
-			while(in.hasNextLine()){
-				String line=in.nextLine();
-				String[] fields=(new CSVParser()).parseLine(line);
-				
-				//length check
-				
-				if(fields.length!=6){
-					System.out.println("Error in BlockPurging! Field length != 6");
-					System.out.println(line);
+	public static BlockPurging load(String file1, String file2, Set<Integer> fieldsToPopulate,
+			int numThreads){
+		String snapshotFile=null;
+		if(snapshotFolder!=null){
+			snapshotFile=new File(snapshotFolder, snapshotName(file1, file2, fieldsToPopulate)).getPath();
+			try{
+				Metrics.Phase phase=Metrics.start("loadSnapshot");
+				BlockPurging obj=InstanceSnapshot.load(snapshotFile, file1, file2, fieldsToPopulate);
+				if(obj!=null){
+					phase.end(obj.IDs1.size()+obj.IDs2.size(), 0);
+					return obj;
 				}
-				
-				//add ID
-				IDs1.add(fields[0]);
-				
-				//build set
-				Set<String> tokens=new HashSet<String>();
-				for(int i=1; i<fields.length; i++){
-					for(String t: tokenizer)
-						fields[i]=fields[i].replaceAll(t, " ").trim();
-					String[] tmp=fields[i].split(" ");
-					for(String t: tmp)
-						tokens.add(t.toLowerCase());
-				}
-				
-				//add set to instances
-				instances1.add(tokens);
+			}catch(IOException e){
+				e.printStackTrace();
 			}
-			
-		}catch(IOException e){
-			e.printStackTrace();
-		}finally{
-			in.close();
 		}
 		
-		//read in second file
-		try{
-			//initialize
-			
-			in=new Scanner(new FileReader(file2));
-			instances2=new ArrayList<Set<String>>();
-			IDs2=new ArrayList<String>();
-			
-			//bypass header
-			
-			if(in.hasNextLine())
-				in.nextLine();
-			
-			
-			while(in.hasNextLine()){
-				String line=in.nextLine();
-				String[] fields=(new CSVParser()).parseLine(line);
-				
-				//length check
-				
-				if(fields.length!=6){
-					System.out.println("Error in BlockPurging! Field length != 6");
-					System.out.println(line);
-				}
-				
-				//add ID
-				IDs2.add(fields[0]);
-				
-				//build set
-				Set<String> tokens=new HashSet<String>();
-				for(int i=1; i<fields.length; i++){
-					for(String t: tokenizer)
-						fields[i]=fields[i].replaceAll(t, " ").trim();
-					String[] tmp=fields[i].split(" ");
-					for(String t: tmp)
-						tokens.add(t.toLowerCase());
-				}
-				
-				//add set to instances
-				instances2.add(tokens);
+		Metrics.Phase phase=Metrics.start("load");
+		BlockPurging obj;
+		if(numThreads>1)
+			obj=new BlockPurging(file1, file2, fieldsToPopulate, numThreads);
+		else if(fieldsToPopulate==null)
+			obj=new BlockPurging(file1, file2);
+		else
+			obj=new BlockPurging(file1, file2, fieldsToPopulate);
+		phase.end(obj.IDs1.size()+obj.IDs2.size(), 0);
+		
+		if(snapshotFile!=null){
+			try{
+				InstanceSnapshot.save(obj, fieldsToPopulate, file1, file2, snapshotFile);
+			}catch(IOException e){
+				e.printStackTrace();
 			}
-			
-		}catch(IOException e){
-			e.printStackTrace();
-		}finally{
-			in.close();
 		}
+		return obj;
+	}
+	
+	private static String snapshotName(String file1, String file2, Set<Integer> fieldsToPopulate){
+		StringBuilder name=new StringBuilder();
+		name.append(new File(file1).getName()).append('_').append(new File(file2).getName()).append("_fields");
+		if(fieldsToPopulate==null)
+			name.append("-all");
+		else
+			for(int field: new java.util.TreeSet<Integer>(fieldsToPopulate))
+				name.append('-').append(field);
+		return name.append(".snapshot").toString();
+	}
+	
+	public static void setSnapshotFolder(String folder){
+		snapshotFolder=folder;
+	}
+	
+	/*
+	 * An empty object, to be populated by InstanceSnapshot.
+	 */
+	BlockPurging(){
+		dictionary=new TokenDictionary();
+		instances1=new ArrayList<int[]>();
+		IDs1=new ArrayList<String>();
+		instances2=new ArrayList<int[]>();
+		IDs2=new ArrayList<String>();
+	}
+	
+	/*
+	 * The constructor is intended to populate the IDs and instances data structures.
+	 */
+	public BlockPurging(String file1, String file2){
+		dictionary=new TokenDictionary();
+		instances1=new ArrayList<int[]>();
+		IDs1=new ArrayList<String>();
+		instances2=new ArrayList<int[]>();
+		IDs2=new ArrayList<String>();
 		
+		//read in first file
+		readInstances(file1, IDs1, instances1, null);
+		//read in second file
+		readInstances(file2, IDs2, instances2, null);
 	}
 	
 	/*
@@ -338,65 +599,52 @@ public class BlockPurging {
 		if(fieldsToPopulate==null)
 			System.exit(-1);
 		
-		Scanner in=null;
+		dictionary=new TokenDictionary();
+		instances1=new ArrayList<int[]>();
+		IDs1=new ArrayList<String>();
+		instances2=new ArrayList<int[]>();
+		IDs2=new ArrayList<String>();
 		
 		//read in first file
+		readInstances(file1, IDs1, instances1, fieldsToPopulate);
+		//read in second file
+		readInstances(file2, IDs2, instances2, fieldsToPopulate);
+	}
+	
+	/*
+	 * Same as above, but both files are read concurrently, and rows are parsed and
+	 * tokenized in chunks on numThreads workers (see ParallelInstanceLoader). IDs
+	 * and instances still end up in the original row order. A null
+	 * fieldsToPopulate means every field is considered. Unlike the serial
+	 * constructors, a file that cannot be read or parsed fails the constructor,
+	 * rather than leaving only part of the rows.
+	 */
+	public BlockPurging(String file1, String file2, Set<Integer> fieldsToPopulate, int numThreads){
+		dictionary=new TokenDictionary();
+		instances1=new ArrayList<int[]>();
+		IDs1=new ArrayList<String>();
+		instances2=new ArrayList<int[]>();
+		IDs2=new ArrayList<String>();
+		
+		ParallelInstanceLoader loader=new ParallelInstanceLoader(fieldsToPopulate, numThreads);
 		try{
-			//initialize
-			
-			in=new Scanner(new FileReader(file1));
-			instances1=new ArrayList<Set<String>>();
-			IDs1=new ArrayList<String>();
-			
-			//bypass header
-			
-			if(in.hasNextLine())
-				in.nextLine();
-			
-			
-			while(in.hasNextLine()){
-				String line=in.nextLine();
-				String[] fields=(new CSVParser()).parseLine(line);
-				
-				//length check
-				
-				if(fields.length!=6){
-					System.out.println("Error in BlockPurging! Field length != 6");
-					System.out.println(line);
-				}
-				
-				//add ID
-				IDs1.add(fields[0]);
-				
-				//build set
-				Set<String> tokens=new HashSet<String>();
-				for(int i=1; i<fields.length; i++){
-					if(!fieldsToPopulate.contains(i))	//the major change 
-						continue;
-					for(String t: tokenizer)
-						fields[i]=fields[i].replaceAll(t, " ").trim();
-					String[] tmp=fields[i].split(" ");
-					for(String t: tmp)
-						tokens.add(t.toLowerCase());
-				}
-				
-				//add set to instances
-				instances1.add(tokens);
-			}
-			
+			loader.load(file1, file2, this);
 		}catch(IOException e){
-			e.printStackTrace();
-		}finally{
-			in.close();
+			throw new RuntimeException("Could not load "+file1+" and "+file2, e);
 		}
-		
-		//read in second file
+	}
+	
+	/*
+	 * Reads one CSV file, bypassing its header, and appends its IDs and instances.
+	 * If fieldsToPopulate is null, every non-ID field is tokenized.
+	 */
+	private void readInstances(String file, ArrayList<String> IDs, ArrayList<int[]> instances,
+			Set<Integer> fieldsToPopulate){
+		Scanner in=null;
+		CsvScanner parser=new CsvScanner();
+		Tokenizer fieldTokenizer=new Tokenizer();
 		try{
-			//initialize
-			
-			in=new Scanner(new FileReader(file2));
-			instances2=new ArrayList<Set<String>>();
-			IDs2=new ArrayList<String>();
+			in=new Scanner(new FileReader(file));
 			
 			//bypass header
 			
@@ -405,34 +653,13 @@ public class BlockPurging {
 			
 			
 			while(in.hasNextLine()){
-				String line=in.nextLine();
-				String[] fields=(new CSVParser()).parseLine(line);
-				
-				//length check
-				
-				if(fields.length!=6){
-					System.out.println("Error in BlockPurging! Field length != 6");
-					System.out.println(line);
-				}
+				Set<String> tokens=new HashSet<String>();
 				
 				//add ID
-				IDs2.add(fields[0]);
-				//System.out.println(fields[0]);
-				
-				//build set
-				Set<String> tokens=new HashSet<String>();
-				for(int i=1; i<fields.length; i++){
-					if(!fieldsToPopulate.contains(i))
-						continue;
-					for(String t: tokenizer)
-						fields[i]=fields[i].replaceAll(t, " ").trim();
-					String[] tmp=fields[i].split(" ");
-					for(String t: tmp)
-						tokens.add(t.toLowerCase());
-				}
+				IDs.add(parseInstance(in.nextLine(), parser, fieldTokenizer, fieldsToPopulate, tokens));
 				
 				//add set to instances
-				instances2.add(tokens);
+				instances.add(dictionary.encode(tokens));
 			}
 			
 		}catch(IOException e){
@@ -440,7 +667,40 @@ public class BlockPurging {
 		}finally{
 			in.close();
 		}
+	}
+	
+	/*
+	 * Parses one CSV line, adds the tokens of its selected fields to tokens and
+	 * returns its ID. This is shared by the serial and parallel loaders, so it
+	 * must not touch any instance state. With metrics enabled, the time spent
+	 * parsing and tokenizing is added to the parse and tokenize timers.
+	 */
+	static String parseInstance(String line, CsvScanner parser, Tokenizer fieldTokenizer, 
+			Set<Integer> fieldsToPopulate, Set<String> tokens){
+		boolean timed=Metrics.isEnabled();
+		long start=timed ? System.nanoTime() : 0;
+		parser.reset(line);
+		long parsed=timed ? System.nanoTime() : 0;
+		
+		//length check
+		
+		if(parser.numFields()!=6){
+			System.out.println("Error in BlockPurging! Field length != 6");
+			System.out.println(line);
+			Metrics.addCount("malformedRows", 1);
+		}
 		
+		//build set
+		for(int i=1; i<parser.numFields(); i++){
+			if(fieldsToPopulate!=null && !fieldsToPopulate.contains(i))
+				continue;
+			fieldTokenizer.tokenize(parser.field(i), tokens);
+		}
+		if(timed){
+			Metrics.addTime("parse", parsed-start);
+			Metrics.addTime("tokenize", System.nanoTime()-parsed);
+		}
+		return parser.fieldString(0);
 	}
 	
 	/*
@@ -449,80 +709,61 @@ public class BlockPurging {
 	 * (2) are valid, in terms of satisfying thresholds.
 	 */
 	public Set<String> buildValidCommonKeySet(){
-		/*These are the six main data structures. smaller/larger will refer to the
-		*smaller/larger of instances1 and 2 resp. output will be populated last.
-		*{smaller/larger}Counts contain tuple counts in terms of tokens (like
-		*document frequencies). Forbidden is a tmp structure that is used for
-		*enforcing blockThresh constraints in both instance sets.
-		*
-		*/
+		boolean[] valid=buildValidCommonKeys();
 		Set<String> output=new HashSet<String>();
-		Map<String, Integer> smallerCounts=new HashMap<String,Integer>();
-		Map<String, Integer> largerCounts=new HashMap<String,Integer>();
-		Set<String> forbidden=new HashSet<String>();
-		
-		ArrayList<Set<String>> smaller =   
+		for(int id=0; id<valid.length; id++)
+			if(valid[id])
+				output.add(dictionary.getToken(id));
+		return output;
+	}
+	
+	/*
+	 * Same as buildValidCommonKeySet, but indexed by token id. 
+	 * {smaller/larger}Counts contain tuple counts in terms of tokens (like
+	 * document frequencies), where smaller/larger refer to the smaller/larger of
+	 * instances1 and 2 resp. A token is forbidden if its count exceeds blockThresh
+	 * in either instance set, and is valid if it is common to both and the product
+	 * of its counts does not exceed pairWiseThresh.
+	 */
+	boolean[] buildValidCommonKeys(){
+		ArrayList<int[]> smaller =   
 				instances1.size()<=instances2.size() ? instances1 : instances2;
-		ArrayList<Set<String>> larger =   
+		ArrayList<int[]> larger =   
 				instances1.size()<=instances2.size() ? instances2 : instances1;
 		if(smaller==larger)
 			System.out.println("Error in BlockPurging.buildValidCommonKeySet()! smaller is same as larger!");
 		
-		
-		
-		 // We stop updating counts once we cross the threshold, and add to forbidden.
-		 
-		for(Set<String> instance: smaller)
-			for(String token: instance){
-				if(!smallerCounts.containsKey(token))
-					smallerCounts.put(token, 0);
-				int count=smallerCounts.get(token);
-				if(count>=blockThresh)
-					forbidden.add(token);
-				else
-					smallerCounts.put(token, count+1);
-			}
-		
-		//enforce blockThresh constraint
-		for(String token: forbidden)
-			smallerCounts.remove(token);
-		
-		forbidden=null;
-		forbidden=new HashSet<String>();
-		
-		for(Set<String> instance: larger)
-			for(String token: instance){
-				//a small optimization, to conserve space
-				if(!smallerCounts.containsKey(token))
-					continue;
-				if(!largerCounts.containsKey(token))
-					largerCounts.put(token, 0);
-				int count=largerCounts.get(token);
-				if(count>=blockThresh)
-					forbidden.add(token);
-				else
-					largerCounts.put(token, count+1);
-			}
-		
-		for(String token: forbidden)
-			largerCounts.remove(token);
-		
-		//to conserve space.
-		forbidden=null;
-		
-		/*enforce pairWiseThresh constraint and build final output set. It's best
-		*to iterate over largerCounts since it's guaranteed to contain a subset of
-		*smallerCounts keys 
-		*/
-		for(String bkv: largerCounts.keySet())
-			
-				if(smallerCounts.get(bkv)*largerCounts.get(bkv)<=pairWiseThresh)
-					output.add(bkv);
-		
-	
+		int[] smallerCounts=countTokens(smaller);
+		int[] largerCounts=countTokens(larger);
+		boolean[] output=new boolean[dictionary.size()];
+		for(int id=0; id<output.length; id++)
+			output[id]=isValidKey(smallerCounts[id], largerCounts[id]);
 		return output;
 	}
 	
+	/*
+	 * The thresholds of buildValidCommonKeys, for one token. Since both thresholds
+	 * treat the two counts alike, it does not matter which one is the smaller.
+	 */
+	boolean isValidKey(int smallerCount, int largerCount){
+		if(smallerCount==0 || smallerCount>blockThresh)
+			return false;
+		if(largerCount==0 || largerCount>blockThresh)
+			return false;
+		return (long) smallerCount*largerCount<=pairWiseThresh;
+	}
+	
+	/*
+	 * Returns the document frequency of every token id in the given instance list.
+	 */
+	int[] countTokens(ArrayList<int[]> instances){
+		int[] counts=new int[dictionary.size()];
+		for(int[] instance: instances)
+			for(int id: instance)
+				counts[id]++;
+		return counts;
+	}
+	
 	/*
 	 * This function is designed to be deterministic. ID1s in the bilateral blocks
 	 * are written out in order, as are all ID2s.Each line has the format
@@ -530,19 +771,18 @@ public class BlockPurging {
 	 * Here, we use a, b... to indicate the list of ID2s corresponding to an ID1.
 	 */
 	public void writeBilateralBlocksToFile(Set<String> bkvs, String outfile){
-		Map<String, Set<String>> bilateralBlocks=buildBilateralBlocks(bkvs);
-		ArrayList<String> keys=new ArrayList<String>(bilateralBlocks.keySet());
-		Collections.sort(keys);
+		CandidatePairs pairs=buildCandidatePairs(bkvs);
+		SortedIDs ids1=getSortedIDs1();
+		SortedIDs ids2=getSortedIDs2();
 		PrintWriter out=null;
 		try{
 			out=new PrintWriter(new File(outfile));
-			for(String id1:keys){
-				out.print(id1+"\t");
-				ArrayList<String> ids2=new ArrayList<String>(bilateralBlocks.get(id1));
-				Collections.sort(ids2);
-				for(int i=0; i<ids2.size()-1; i++)
-					out.print(ids2.get(i)+"\t");
-				out.println(ids2.get(ids2.size()-1));
+			for(int start=0, end; start<pairs.size(); start=end){
+				end=pairs.groupEnd(start);
+				out.print(ids1.getID(pairs.first(start))+"\t");
+				for(int i=start; i<end-1; i++)
+					out.print(ids2.getID(pairs.second(i))+"\t");
+				out.println(ids2.getID(pairs.second(end-1)));
 			}
 			
 		}catch(IOException e){
@@ -550,47 +790,196 @@ public class BlockPurging {
 		}finally{out.close();}
 	}
 	
+	/*
+	 * The binary counterpart of writeBilateralBlocksToFile (see BilateralBlocksFile),
+	 * which can be memory-mapped and fed back to JaccardMatcher.
+	 */
+	public void writeBilateralBlocksToBinaryFile(Set<String> bkvs, String outfile){
+		try{
+			BilateralBlocksFile.write(buildCandidatePairs(bkvs), getSortedIDs1(), getSortedIDs2(), outfile);
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * The key is an ID1, while the set contains IDs2. This is the original form of
+	 * the bilateral blocks; buildCandidatePairs holds the same pairs far more
+	 * compactly, and is what the matchers use.
+	 */
 	public Map<String, Set<String>> buildBilateralBlocks(Set<String> bkvs){
-		//blocks1 contains the IDs, with the key being a bkv.
-		Map<String, Set<String>> blocks1=new HashMap<String, Set<String>>();
-		//the key is an ID1, while the set contains IDs2
+		return toBilateralBlocks(buildCandidatePairs(bkvs));
+	}
+	
+	public Map<String, Set<String>> toBilateralBlocks(CandidatePairs pairs){
+		SortedIDs ids1=getSortedIDs1();
+		SortedIDs ids2=getSortedIDs2();
 		Map<String, Set<String>> bilateralBlocks=new HashMap<String, Set<String>>();
+		for(int start=0, end; start<pairs.size(); start=end){
+			end=pairs.groupEnd(start);
+			Set<String> set=new HashSet<String>();
+			for(int i=start; i<end; i++)
+				set.add(ids2.getID(pairs.second(i)));
+			bilateralBlocks.put(ids1.getID(pairs.first(start)), set);
+		}
+		return bilateralBlocks;
+	}
+	
+	/*
+	 * Returns the deduplicated pairs of ID ordinals (see SortedIDs) that share at
+	 * least one bkv. Each instance contributes its row index once to the postings
+	 * of every bkv it contains, so we never scan the full bkv set per instance.
+	 */
+	public CandidatePairs buildCandidatePairs(Set<String> bkvs){
+		return buildCandidatePairs(toKeyMask(bkvs));
+	}
+	
+	CandidatePairs buildCandidatePairs(boolean[] isBkv){
+		final CandidatePairs.Builder builder=new CandidatePairs.Builder();
+		streamCandidates(isBkv, new CandidateVisitor(){
+			public void visit(int ordinal1, int[] ordinals2, int count){
+				for(int i=0; i<count; i++)
+					builder.add(ordinal1, ordinals2[i]);
+			}
+		});
+		return builder.build();
+	}
+	
+	/*
+	 * Returns the number of deduplicated candidate pairs of the bkvs, streaming
+	 * them one ID1 at a time, so memory stays O(|instances2|) beyond the
+	 * postings however many pairs there are.
+	 */
+	public long countCandidatePairs(Set<String> bkvs){
+		final long[] count={0};
+		streamCandidates(toKeyMask(bkvs), new CandidateVisitor(){
+			public void visit(int ordinal1, int[] ordinals2, int numOrdinals2){
+				count[0]+=numOrdinals2;
+			}
+		});
+		return count[0];
+	}
+	
+	/*
+	 * Receives the candidates of one ID1 ordinal: the first count entries of
+	 * ordinals2, sorted and deduplicated. The array is reused across calls.
+	 */
+	interface CandidateVisitor{
+		void visit(int ordinal1, int[] ordinals2, int count);
+	}
+	
+	/*
+	 * Streams the candidate pairs of the bkvs in isBkv, one ID1 ordinal at a time
+	 * and in ordinal order. Only the postings of instances2 are materialized, and
+	 * pairs are deduplicated per ID1 with a marker array over the ID2 ordinals, so
+	 * memory stays O(|instances2|) beyond the postings.
+	 */
+	void streamCandidates(boolean[] isBkv, CandidateVisitor visitor){
+		SortedIDs ids1=getSortedIDs1();
+		SortedIDs ids2=getSortedIDs2();
+		//indexed by bkv id, each array contains ID2 ordinals
+		int[][] postings2=buildPostings(instances2, isBkv);
+		for(int[] posting: postings2)
+			if(posting!=null)
+				for(int i=0; i<posting.length; i++)
+					posting[i]=ids2.ordinalOf(posting[i]);
 		
-		//populate blocks1
-		for(int i=0; i<instances1.size(); i++)
-			for(String bkv: bkvs)
-				if(instances1.get(i).contains(bkv)){
-					if(!blocks1.containsKey(bkv))
-						blocks1.put(bkv, new HashSet<String>());
-					blocks1.get(bkv).add(IDs1.get(i));
+		boolean[] marked=new boolean[ids2.size()];
+		int[] touched=new int[ids2.size()];
+		for(int ordinal1=0; ordinal1<ids1.size(); ordinal1++){
+			int count=0;
+			for(int k=ids1.ordinalStart[ordinal1]; k<ids1.ordinalStart[ordinal1+1]; k++)
+				for(int id: instances1.get(ids1.rowsByOrdinal[k])){
+					if(id>=isBkv.length || postings2[id]==null)
+						continue;
+					for(int ordinal2: postings2[id])
+						if(!marked[ordinal2]){
+							marked[ordinal2]=true;
+							touched[count++]=ordinal2;
+						}
 				}
-		
-		//populate bilateralBlocks
-		for(int i=0; i<instances2.size(); i++)
-			for(String bkv: bkvs)
-				if(instances2.get(i).contains(bkv) && blocks1.containsKey(bkv))
-					for(String id1: blocks1.get(bkv)){
-						if(!bilateralBlocks.containsKey(id1))
-							bilateralBlocks.put(id1, new HashSet<String>());
-						bilateralBlocks.get(id1).add(IDs2.get(i));
-					}
-		return bilateralBlocks;
+			if(count==0)
+				continue;
+			Arrays.sort(touched, 0, count);
+			for(int i=0; i<count; i++)
+				marked[touched[i]]=false;
+			visitor.visit(ordinal1, touched, count);
+		}
+	}
+	
+	/*
+	 * The distinct IDs of instances{1,2} in sorted order. These are cached, and
+	 * must be reset whenever IDs1 or IDs2 change.
+	 */
+	public SortedIDs getSortedIDs1(){
+		if(sortedIDs1==null)
+			sortedIDs1=new SortedIDs(IDs1);
+		return sortedIDs1;
+	}
+	
+	public SortedIDs getSortedIDs2(){
+		if(sortedIDs2==null)
+			sortedIDs2=new SortedIDs(IDs2);
+		return sortedIDs2;
+	}
+	
+	/*
+	 * Converts a set of bkvs to a mask indexed by token id. Bkvs that are not in
+	 * the dictionary cannot occur in any instance, and are dropped.
+	 */
+	boolean[] toKeyMask(Set<String> bkvs){
+		boolean[] isBkv=new boolean[dictionary.size()];
+		for(String bkv: bkvs){
+			int id=dictionary.lookup(bkv);
+			if(id>=0)
+				isBkv[id]=true;
+		}
+		return isBkv;
+	}
+	
+	/*
+	 * Builds a bkv->postings inverted index over the given instances. Every instance
+	 * is visited once, and only its own tokens are looked up in isBkv. Tokens that
+	 * are not bkvs, or that no instance contains, have null postings.
+	 */
+	static int[][] buildPostings(ArrayList<int[]> instances, boolean[] isBkv){
+		int[] sizes=new int[isBkv.length];
+		for(int[] instance: instances)
+			for(int id: instance)
+				if(id<isBkv.length && isBkv[id])
+					sizes[id]++;
+		int[][] postings=new int[isBkv.length][];
+		for(int id=0; id<isBkv.length; id++)
+			if(sizes[id]>0)
+				postings[id]=new int[sizes[id]];
+		int[] fill=new int[isBkv.length];
+		for(int i=0; i<instances.size(); i++)
+			for(int id: instances.get(i))
+				if(id<isBkv.length && isBkv[id])
+					postings[id][fill[id]++]=i;
+		return postings;
 	}
 	
 	/*
 	 * Computes the reduction ratio given a set of bkvs. We strictly assume
 	 * token-based bkvs, whereby the bkv is contained in the sets in instances{1,2}
 	 * We take pains to ensure the candidate set is deduplicated before computing RR.
+	 * The pairs are only counted, never stored (see countCandidatePairs).
 	 */
 	public void printReductionRatio(Set<String> bkvs){
-		int exhaustiveSetSize=instances1.size()*instances2.size();
-		double candidateSetSize=0.0;
-		
-		Map<String, Set<String>> bilateralBlocks=buildBilateralBlocks(bkvs);
-		
-		//update candidateSetSize 
-		for(String id1: bilateralBlocks.keySet())
-			candidateSetSize+=bilateralBlocks.get(id1).size();
+		printReductionRatio(countCandidatePairs(bkvs));
+	}
+	
+	/*
+	 * Same as above, for candidate pairs from any blocking method.
+	 */
+	public void printReductionRatio(CandidatePairs pairs){
+		printReductionRatio((long) pairs.size());
+	}
+	
+	private void printReductionRatio(long dedupCandidates){
+		long exhaustiveSetSize=(long) instances1.size()*instances2.size();
+		double candidateSetSize=dedupCandidates;
 		
 		double RR=1.0-candidateSetSize/exhaustiveSetSize;
 		System.out.println("Exhaustive set size is : "+exhaustiveSetSize);
@@ -611,17 +1000,30 @@ public class BlockPurging {
 	 * is non-exhaustive.
 	 */
 	public void printPairsCompleteness(Set<String> bkvs, String goldStandardFile){
+		printPairsCompleteness(buildCandidatePairs(bkvs), goldStandardFile);
+	}
+	
+	/*
+	 * Same as above, for candidate pairs from any blocking method.
+	 */
+	public void printPairsCompleteness(CandidatePairs pairs, String goldStandardFile){
 		Map<String, Set<String>> goldSet=buildGoldSet(goldStandardFile, true);
 		int goldPairs=0;
 		for(String id1: goldSet.keySet())
 			goldPairs+=goldSet.get(id1).size();
-		Map<String, Set<String>> bilateralBlocks=buildBilateralBlocks(bkvs);
+		SortedIDs ids1=getSortedIDs1();
+		SortedIDs ids2=getSortedIDs2();
 		int truePositives=0;
-		for(String id1: goldSet.keySet())
-			if(bilateralBlocks.containsKey(id1))
-				for(String id2: goldSet.get(id1))
-					if(bilateralBlocks.get(id1).contains(id2))
-						truePositives++;
+		for(String id1: goldSet.keySet()){
+			int ordinal1=ids1.ordinalOf(id1);
+			if(ordinal1<0)
+				continue;
+			for(String id2: goldSet.get(id1)){
+				int ordinal2=ids2.ordinalOf(id2);
+				if(ordinal2>=0 && pairs.contains(ordinal1, ordinal2))
+					truePositives++;
+			}
+		}
 		double PC=(1.0*truePositives)/goldPairs;
 		System.out.println("Number of gold true positives : "+goldPairs);
 		System.out.println("Number of retrieved true positives : "+truePositives);
@@ -638,12 +1040,28 @@ public class BlockPurging {
 	}
 	
 	public Set<String> getInstances1(int index){
-		return instances1.get(index);
+		return dictionary.decode(instances1.get(index));
 	}
 	
 	public Set<String> getInstances2(int index){
+		return dictionary.decode(instances2.get(index));
+	}
+	
+	/*
+	 * The sorted token-id representation of an instance. Prefer these over
+	 * getInstances{1,2} in hot loops, since they do not allocate.
+	 */
+	public int[] getTokenIds1(int index){
+		return instances1.get(index);
+	}
+	
+	public int[] getTokenIds2(int index){
 		return instances2.get(index);
 	}
+	
+	public TokenDictionary getDictionary(){
+		return dictionary;
+	}
 
 	
 	
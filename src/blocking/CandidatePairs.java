@@ -0,0 +1,103 @@
+package blocking;
+
+import java.util.Arrays;
+
+public class CandidatePairs {
+
+	/**
+	 * A compact, sorted and duplicate-free set of candidate pairs. Each pair is
+	 * packed into one long, with the first coordinate in the high 32 bits, so the
+	 * sort order groups pairs by their first coordinate.
+	 *
+	 * The pairs produced by BlockPurging use ID ordinals (see SortedIDs) as
+	 * coordinates: the position of an instance's ID in sorted ID order. Iterating
+	 * the pairs is then the same as iterating the old Map<String, Set<String>>
+	 * bilateral blocks with sorted keys and sorted values, the order in which the
+	 * matchers write their output, and ID strings only need to be resolved when a
+	 * line is written.
+	 */
+
+	long[] pairs;
+	int size;
+
+	CandidatePairs(long[] pairs, int size){
+		this.pairs=pairs;
+		this.size=size;
+	}
+
+	public static long pack(int first, int second){
+		return ((long) first<<32) | (second & 0xFFFFFFFFL);
+	}
+
+	public static int first(long pair){
+		return (int) (pair>>>32);
+	}
+
+	public static int second(long pair){
+		return (int) pair;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public long get(int index){
+		return pairs[index];
+	}
+
+	public int first(int index){
+		return first(pairs[index]);
+	}
+
+	public int second(int index){
+		return second(pairs[index]);
+	}
+
+	/*
+	 * Returns the end (exclusive) of the group of pairs that starts at index, i.e.
+	 * of the pairs sharing its first coordinate. Iterate by group with
+	 * for(int start=0; start<size(); start=end){ end=groupEnd(start); ... }
+	 */
+	public int groupEnd(int index){
+		int first=first(pairs[index]);
+		int end=index+1;
+		while(end<size && first(pairs[end])==first)
+			end++;
+		return end;
+	}
+
+	public boolean contains(int first, int second){
+		return Arrays.binarySearch(pairs, 0, size, pack(first, second))>=0;
+	}
+
+	/*
+	 * Accumulates pairs in any order, with duplicates; build() sorts and
+	 * deduplicates them.
+	 */
+	public static class Builder{
+		long[] pairs=new long[1024];
+		int size=0;
+
+		public void add(int first, int second){
+			if(size==pairs.length)
+				pairs=Arrays.copyOf(pairs, pairs.length+(pairs.length>>1));
+			pairs[size++]=pack(first, second);
+		}
+
+		public int size(){
+			return size;
+		}
+
+		public CandidatePairs build(){
+			Arrays.sort(pairs, 0, size);
+			int count=0;
+			for(int i=0; i<size; i++)
+				if(count==0 || pairs[count-1]!=pairs[i])
+					pairs[count++]=pairs[i];
+			CandidatePairs result=new CandidatePairs(pairs, count);
+			pairs=null;
+			return result;
+		}
+	}
+
+}
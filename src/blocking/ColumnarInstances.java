@@ -0,0 +1,232 @@
+package blocking;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Scanner;
+import java.util.Set;
+
+import matching.Exploratory;
+
+public class ColumnarInstances {
+
+	/**
+	 * The instances of the two BlockPurging input files, parsed and tokenized once,
+	 * with the tokens of every field kept apart: one sorted token-id array per row
+	 * and field, in a dictionary shared by all fields. A subset of fields is a
+	 * bitmask, with bit i standing for field i (field 0 is the ID), so trying
+	 * every combination of the five non-ID fields costs one parse instead of 31.
+	 *
+	 * tokenIds{1,2}(row, fieldMask) is the union of the selected fields of a row,
+	 * which is exactly the token set BlockPurging builds for those fields, and
+	 * select(fieldMask) materializes a BlockPurging from these unions without
+	 * touching the files. Token ids follow this dictionary, so they differ from
+	 * those of a fresh parse; only MinHashBlocker, which hashes ids, can tell.
+	 * Fields past MAX_FIELD, which well-formed rows do not have, are dropped.
+	 */
+
+	static final int MAX_FIELD=30;
+
+	/*
+	 * Every non-ID field.
+	 */
+	public static final int ALL_FIELDS=~1;
+
+	private static final int[] NO_TOKENS=new int[0];
+
+	TokenDictionary dictionary=new TokenDictionary();
+	ArrayList<String> IDs1=new ArrayList<String>();
+	ArrayList<String> IDs2=new ArrayList<String>();
+
+	/*
+	 * columns{1,2}.get(field).get(row); a row that lacks a field has no tokens
+	 * for it. Column 0 is always empty.
+	 */
+	ArrayList<ArrayList<int[]>> columns1=new ArrayList<ArrayList<int[]>>();
+	ArrayList<ArrayList<int[]>> columns2=new ArrayList<ArrayList<int[]>>();
+
+	public ColumnarInstances(String file1, String file2){
+		readColumns(file1, IDs1, columns1);
+		readColumns(file2, IDs2, columns2);
+	}
+
+	/*
+	 * Reads one CSV file, bypassing its header, like BlockPurging.readInstances.
+	 */
+	private void readColumns(String file, ArrayList<String> IDs, ArrayList<ArrayList<int[]>> columns){
+		Scanner in=null;
+		CsvScanner parser=new CsvScanner();
+		Tokenizer fieldTokenizer=new Tokenizer();
+		Set<String> tokens=new HashSet<String>();
+		try{
+			in=new Scanner(new FileReader(file));
+
+			//bypass header
+			if(in.hasNextLine())
+				in.nextLine();
+
+			while(in.hasNextLine()){
+				String line=in.nextLine();
+				parser.reset(line);
+				if(parser.numFields()!=6){
+					System.out.println("Error in ColumnarInstances! Field length != 6");
+					System.out.println(line);
+				}
+				int row=IDs.size();
+				IDs.add(parser.fieldString(0));
+				int numFields=Math.min(parser.numFields(), MAX_FIELD+1);
+				while(columns.size()<numFields){
+					ArrayList<int[]> column=new ArrayList<int[]>();
+					for(int i=0; i<row; i++)
+						column.add(NO_TOKENS);
+					columns.add(column);
+				}
+				for(int field=0; field<columns.size(); field++){
+					if(field==0 || field>=numFields){
+						columns.get(field).add(NO_TOKENS);
+						continue;
+					}
+					tokens.clear();
+					fieldTokenizer.tokenize(parser.field(field), tokens);
+					columns.get(field).add(dictionary.encode(tokens));
+				}
+			}
+
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			if(in!=null)
+				in.close();
+		}
+	}
+
+	/*
+	 * The mask of the given fields, or ALL_FIELDS if fields is null.
+	 */
+	public static int toFieldMask(Set<Integer> fields){
+		if(fields==null)
+			return ALL_FIELDS;
+		int mask=0;
+		for(int field: fields)
+			if(field>0 && field<=MAX_FIELD)
+				mask|=1<<field;
+		return mask;
+	}
+
+	/*
+	 * The number of fields of the widest row, including the ID.
+	 */
+	public int numFields(){
+		return Math.max(columns1.size(), columns2.size());
+	}
+
+	public ArrayList<String> getIDs1(){
+		return IDs1;
+	}
+
+	public ArrayList<String> getIDs2(){
+		return IDs2;
+	}
+
+	public TokenDictionary getDictionary(){
+		return dictionary;
+	}
+
+	/*
+	 * The sorted token ids of one field of a row.
+	 */
+	public int[] getFieldTokenIds1(int row, int field){
+		return field<columns1.size() ? columns1.get(field).get(row) : NO_TOKENS;
+	}
+
+	public int[] getFieldTokenIds2(int row, int field){
+		return field<columns2.size() ? columns2.get(field).get(row) : NO_TOKENS;
+	}
+
+	/*
+	 * The sorted union of the token ids of the fields of a row in fieldMask.
+	 */
+	public int[] tokenIds1(int row, int fieldMask){
+		return union(columns1, row, fieldMask);
+	}
+
+	public int[] tokenIds2(int row, int fieldMask){
+		return union(columns2, row, fieldMask);
+	}
+
+	private static int[] union(ArrayList<ArrayList<int[]>> columns, int row, int fieldMask){
+		int[] only=null;
+		int total=0;
+		int selected=0;
+		for(int field=1; field<columns.size(); field++){
+			if((fieldMask & (1<<field))==0)
+				continue;
+			int[] ids=columns.get(field).get(row);
+			if(ids.length==0)
+				continue;
+			only=ids;
+			total+=ids.length;
+			selected++;
+		}
+		if(selected==0)
+			return NO_TOKENS;
+		if(selected==1)
+			return only;
+		int[] result=new int[total];
+		int count=0;
+		for(int field=1; field<columns.size(); field++)
+			if((fieldMask & (1<<field))!=0){
+				int[] ids=columns.get(field).get(row);
+				System.arraycopy(ids, 0, result, count, ids.length);
+				count+=ids.length;
+			}
+		Arrays.sort(result);
+		count=0;
+		for(int i=0; i<result.length; i++)
+			if(count==0 || result[count-1]!=result[i])
+				result[count++]=result[i];
+		return count==result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	/*
+	 * The Jaccard score of one field of row1 of file1 and row2 of file2, as in
+	 * Exploratory.computeJaccard.
+	 */
+	public double fieldJaccard(int row1, int row2, int field){
+		return Exploratory.computeJaccard(getFieldTokenIds1(row1, field), getFieldTokenIds2(row2, field));
+	}
+
+	/*
+	 * The Jaccard score of the union of the fields in fieldMask.
+	 */
+	public double jaccard(int row1, int row2, int fieldMask){
+		return Exploratory.computeJaccard(tokenIds1(row1, fieldMask), tokenIds2(row2, fieldMask));
+	}
+
+	/*
+	 * A BlockPurging over the fields in fieldMask, with the same IDs and token sets
+	 * as new BlockPurging(file1, file2, fields), but without reading the files.
+	 * It shares this dictionary, and single-field instances, which are never
+	 * modified.
+	 */
+	public BlockPurging select(int fieldMask){
+		BlockPurging obj=new BlockPurging();
+		obj.dictionary=dictionary;
+		obj.IDs1.addAll(IDs1);
+		obj.IDs2.addAll(IDs2);
+		obj.instances1.ensureCapacity(IDs1.size());
+		for(int row=0; row<IDs1.size(); row++)
+			obj.instances1.add(tokenIds1(row, fieldMask));
+		obj.instances2.ensureCapacity(IDs2.size());
+		for(int row=0; row<IDs2.size(); row++)
+			obj.instances2.add(tokenIds2(row, fieldMask));
+		return obj;
+	}
+
+	public BlockPurging select(Set<Integer> fields){
+		return select(toFieldMask(fields));
+	}
+
+}
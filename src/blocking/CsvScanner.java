@@ -0,0 +1,225 @@
+package blocking;
+
+import java.util.Arrays;
+
+public class CsvScanner {
+
+	/**
+	 * A reusable, quote-aware splitter for the CSV lines the readers of this
+	 * project consume. reset copies a line into an internal char buffer, and
+	 * unquotes its fields in place; the fields are then available as offsets into
+	 * that buffer, or as CharSequence views that are reused across lines. Once the
+	 * buffers have grown to the longest line, scanning a line allocates nothing;
+	 * only fieldString, for fields that are kept (e.g. IDs), creates a String.
+	 *
+	 * Fields are separated by commas. A field that starts with a double quote is
+	 * quoted up to the next lone quote, "" standing for one quote inside it, and
+	 * may contain commas; anything between the closing quote and the next comma
+	 * is kept as is. A quote anywhere else is an ordinary character, and an
+	 * unterminated quote runs to the end of the line. Every line has at least one
+	 * field, so an empty line is one empty field.
+	 *
+	 * The views and offsets are only valid until the next reset, and an instance
+	 * must not be shared across threads.
+	 */
+
+	char[] chars=new char[256];
+	int length;
+
+	int numFields;
+	int[] starts=new int[8];
+	int[] ends=new int[8];
+	int[] rawEnds=new int[8];
+	Field[] views=new Field[8];
+
+	/*
+	 * A view of one field of the current line.
+	 */
+	class Field implements CharSequence{
+		int start;
+		int end;
+
+		public int length(){
+			return end-start;
+		}
+
+		public char charAt(int index){
+			return chars[start+index];
+		}
+
+		public CharSequence subSequence(int from, int to){
+			return new String(chars, start+from, to-from);
+		}
+
+		public String toString(){
+			return new String(chars, start, end-start);
+		}
+	}
+
+	public CsvScanner reset(String line){
+		length=line.length();
+		ensureCapacity(length);
+		line.getChars(0, length, chars, 0);
+		scan();
+		return this;
+	}
+
+	public CsvScanner reset(CharSequence line){
+		length=line.length();
+		ensureCapacity(length);
+		for(int i=0; i<length; i++)
+			chars[i]=line.charAt(i);
+		scan();
+		return this;
+	}
+
+	public CsvScanner reset(char[] line, int from, int to){
+		length=to-from;
+		ensureCapacity(length);
+		System.arraycopy(line, from, chars, 0, length);
+		scan();
+		return this;
+	}
+
+	private void ensureCapacity(int capacity){
+		if(chars.length<capacity)
+			chars=new char[Math.max(capacity, 2*chars.length)];
+	}
+
+	/*
+	 * Unquoting only ever shortens a field, so it is written over the line itself.
+	 */
+	private void scan(){
+		numFields=0;
+		int read=0;
+		int write=0;
+		while(true){
+			int start=write;
+			if(read<length && chars[read]=='"'){
+				read++;
+				while(read<length){
+					char c=chars[read++];
+					if(c=='"'){
+						if(read<length && chars[read]=='"')
+							read++;
+						else
+							break;
+					}
+					chars[write++]=c;
+				}
+			}
+			while(read<length && chars[read]!=',')
+				chars[write++]=chars[read++];
+			addField(start, write, read);
+			if(read>=length)
+				return;
+			read++;
+		}
+	}
+
+	private void addField(int start, int end, int rawEnd){
+		if(numFields==starts.length){
+			starts=Arrays.copyOf(starts, 2*numFields);
+			ends=Arrays.copyOf(ends, 2*numFields);
+			rawEnds=Arrays.copyOf(rawEnds, 2*numFields);
+			views=Arrays.copyOf(views, 2*numFields);
+		}
+		starts[numFields]=start;
+		ends[numFields]=end;
+		rawEnds[numFields]=rawEnd;
+		numFields++;
+	}
+
+	public int numFields(){
+		return numFields;
+	}
+
+	/*
+	 * Like indexing the String[] of a split line, asking for a field the line
+	 * does not have fails.
+	 */
+	private void checkField(int i){
+		if(i<0 || i>=numFields)
+			throw new ArrayIndexOutOfBoundsException(i);
+	}
+
+	/*
+	 * The unquoted field i lies in buffer()[start(i), end(i)).
+	 */
+	public char[] buffer(){
+		return chars;
+	}
+
+	public int start(int i){
+		return starts[i];
+	}
+
+	public int end(int i){
+		return ends[i];
+	}
+
+	/*
+	 * The position, in the line that was scanned, of the comma that ends field i,
+	 * or the length of the line for the last field. The raw text of the fields
+	 * after i starts just after it.
+	 */
+	public int rawEnd(int i){
+		return rawEnds[i];
+	}
+
+	/*
+	 * A view of field i, which is reused for field i of later lines.
+	 */
+	public CharSequence field(int i){
+		checkField(i);
+		Field view=views[i];
+		if(view==null){
+			view=new Field();
+			views[i]=view;
+		}
+		view.start=starts[i];
+		view.end=ends[i];
+		return view;
+	}
+
+	public String fieldString(int i){
+		checkField(i);
+		return new String(chars, starts[i], ends[i]-starts[i]);
+	}
+
+	public boolean fieldEquals(int i, String s){
+		checkField(i);
+		if(ends[i]-starts[i]!=s.length())
+			return false;
+		for(int k=0; k<s.length(); k++)
+			if(chars[starts[i]+k]!=s.charAt(k))
+				return false;
+		return true;
+	}
+
+	public boolean fieldEqualsIgnoreCase(int i, String s){
+		checkField(i);
+		if(ends[i]-starts[i]!=s.length())
+			return false;
+		for(int k=0; k<s.length(); k++)
+			if(Character.toLowerCase(chars[starts[i]+k])!=Character.toLowerCase(s.charAt(k)))
+				return false;
+		return true;
+	}
+
+	/*
+	 * The field as it must be written to a CSV line: quoted if it contains a
+	 * comma, a quote or a line break, and as is otherwise.
+	 */
+	public static String escape(String field){
+		boolean quote=false;
+		for(int i=0; i<field.length() && !quote; i++){
+			char c=field.charAt(i);
+			quote=c==',' || c=='"' || c=='\n' || c=='\r';
+		}
+		if(!quote)
+			return field;
+		return "\""+field.replace("\"", "\"\"")+"\"";
+	}
+
+}
@@ -0,0 +1,409 @@
+package blocking;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+
+public class IncrementalBlocking {
+
+	/**
+	 * Applies a delta of inserted, changed and deleted records to the parsed state
+	 * of a BlockPurging object, e.g. a feed refresh, without re-reading either
+	 * source file. The document frequencies of the tokens of every inserted or
+	 * deleted row are updated in place, and only the keys whose frequencies
+	 * changed have their validity (blockThresh, pairWiseThresh) re-evaluated.
+	 * Deleted rows are tombstoned, and dropped when the state is compacted into a
+	 * new BlockPurging object by getBlockPurging.
+	 *
+	 * Records are identified by their IDs. Upserting a record replaces every row
+	 * with its ID, and deleting it tombstones them all, so the compacted state is
+	 * the same as parsing source files in which those rows were removed and the
+	 * upserted records appended.
+	 *
+	 * The pairs a delta can affect are those with an upserted record on either
+	 * side (buildAffectedPairs), plus the pairs sharing a key that the delta made
+	 * valid. Every other pair keeps its tokens, hence its score, and remains a
+	 * candidate unless all of its shared keys became invalid
+	 * (retainUnaffectedCandidates). JaccardMatcher.rescoreBands uses the two to
+	 * bring existing output files up to date, and then calls commit, so that the
+	 * next delta is compared with the state those files were written from.
+	 */
+
+	/*
+	 * The rows, tombstones and document frequencies of one instance list.
+	 */
+	static class Side{
+		ArrayList<String> IDs;
+		ArrayList<int[]> instances;
+		BitSet deleted=new BitSet();
+		Map<String, ArrayList<Integer>> rowsOfID=new HashMap<String, ArrayList<Integer>>();
+		int[] counts;
+		Set<String> upsertedIDs=new HashSet<String>();
+
+		Side(ArrayList<String> IDs, ArrayList<int[]> instances, int[] counts){
+			this.IDs=IDs;
+			this.instances=instances;
+			this.counts=counts;
+			for(int row=0; row<IDs.size(); row++)
+				addRow(IDs.get(row), row);
+		}
+
+		void addRow(String id, int row){
+			ArrayList<Integer> rows=rowsOfID.get(id);
+			if(rows==null){
+				rows=new ArrayList<Integer>(1);
+				rowsOfID.put(id, rows);
+			}
+			rows.add(row);
+		}
+	}
+
+	Set<Integer> fieldsToPopulate;
+	TokenDictionary dictionary;
+	Side side1;
+	Side side2;
+	int blockThresh;
+	int pairWiseThresh;
+
+	/*
+	 * The valid keys before the delta, and the keys whose document frequencies
+	 * the delta has changed, since the last commit.
+	 */
+	boolean[] validBefore;
+	BitSet changedKeys=new BitSet();
+
+	/*
+	 * The result of getBlockPurging, until the next change.
+	 */
+	BlockPurging compacted;
+
+	CsvScanner parser=new CsvScanner();
+	Tokenizer fieldTokenizer=new Tokenizer();
+
+	/*
+	 * Takes over the instance lists of obj, which must not be used afterwards.
+	 * fieldsToPopulate is the field selection obj was built with (null for all
+	 * fields), and is applied to upserted records as well.
+	 */
+	public IncrementalBlocking(BlockPurging obj, Set<Integer> fieldsToPopulate){
+		this.fieldsToPopulate=fieldsToPopulate;
+		dictionary=obj.dictionary;
+		blockThresh=obj.blockThresh;
+		pairWiseThresh=obj.pairWiseThresh;
+		validBefore=obj.buildValidCommonKeys();
+		side1=new Side(obj.IDs1, obj.instances1, obj.countTokens(obj.instances1));
+		side2=new Side(obj.IDs2, obj.instances2, obj.countTokens(obj.instances2));
+	}
+
+	/*
+	 * Loads a state saved by save(), or returns null if there is none for this
+	 * field selection.
+	 */
+	public static IncrementalBlocking load(String stateFile, Set<Integer> fieldsToPopulate) throws IOException{
+		BlockPurging obj=InstanceSnapshot.load(stateFile, null, null, fieldsToPopulate);
+		if(obj==null)
+			return null;
+		return new IncrementalBlocking(obj, fieldsToPopulate);
+	}
+
+	/*
+	 * Saves the compacted state, which a later delta can start from.
+	 */
+	public void save(String stateFile) throws IOException{
+		InstanceSnapshot.save(getBlockPurging(), fieldsToPopulate, null, null, stateFile);
+	}
+
+	/*
+	 * Applies the delta files of both sources; any of them may be null. Upsert
+	 * files have the format of the source files, header included. Delete files
+	 * are CSVs with a header and the IDs to delete in the first column. Deletes
+	 * are applied before upserts.
+	 */
+	public void applyDelta(String upsertFile1, String deleteFile1, String upsertFile2, String deleteFile2){
+		applyFile(side1, deleteFile1, true);
+		applyFile(side2, deleteFile2, true);
+		applyFile(side1, upsertFile1, false);
+		applyFile(side2, upsertFile2, false);
+	}
+
+	private void applyFile(Side side, String file, boolean delete){
+		if(file==null)
+			return;
+		Scanner in=null;
+		try{
+			in=new Scanner(new FileReader(file));
+
+			//bypass header
+			if(in.hasNextLine())
+				in.nextLine();
+
+			while(in.hasNextLine()){
+				String line=in.nextLine();
+				if(delete)
+					delete(side, parser.reset(line).fieldString(0));
+				else
+					upsert(side, line);
+			}
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			if(in!=null)
+				in.close();
+		}
+	}
+
+	/*
+	 * Inserts a record, given as a line of the source format, replacing any rows
+	 * with the same ID.
+	 */
+	public void upsert1(String line) throws IOException{
+		upsert(side1, line);
+	}
+
+	public void upsert2(String line) throws IOException{
+		upsert(side2, line);
+	}
+
+	/*
+	 * Deletes every row with this ID. Returns false if there were none.
+	 */
+	public boolean delete1(String id){
+		return delete(side1, id);
+	}
+
+	public boolean delete2(String id){
+		return delete(side2, id);
+	}
+
+	private void upsert(Side side, String line) throws IOException{
+		Set<String> tokens=new HashSet<String>();
+		String id=BlockPurging.parseInstance(line, parser, fieldTokenizer, fieldsToPopulate, tokens);
+		delete(side, id);
+		int[] instance=dictionary.encode(tokens);
+		side.addRow(id, side.IDs.size());
+		side.IDs.add(id);
+		side.instances.add(instance);
+		for(int token: instance)
+			adjustCount(side, token, 1);
+		side.upsertedIDs.add(id);
+		compacted=null;
+	}
+
+	private boolean delete(Side side, String id){
+		ArrayList<Integer> rows=side.rowsOfID.remove(id);
+		side.upsertedIDs.remove(id);
+		if(rows==null)
+			return false;
+		for(int row: rows){
+			side.deleted.set(row);
+			for(int token: side.instances.get(row))
+				adjustCount(side, token, -1);
+		}
+		compacted=null;
+		return true;
+	}
+
+	private void adjustCount(Side side, int token, int delta){
+		if(token>=side.counts.length){
+			side1.counts=Arrays.copyOf(side1.counts, Math.max(dictionary.size(), 2*side1.counts.length));
+			side2.counts=Arrays.copyOf(side2.counts, side1.counts.length);
+		}
+		side.counts[token]+=delta;
+		changedKeys.set(token);
+	}
+
+	private int count(Side side, int token){
+		return token<side.counts.length ? side.counts[token] : 0;
+	}
+
+	/*
+	 * The valid keys after the delta, indexed by token id. Only the keys the delta
+	 * changed are re-evaluated.
+	 */
+	public boolean[] getValidCommonKeys(){
+		BlockPurging obj=getBlockPurging();
+		boolean[] valid=Arrays.copyOf(validBefore, dictionary.size());
+		for(int token=changedKeys.nextSetBit(0); token>=0; token=changedKeys.nextSetBit(token+1))
+			valid[token]=obj.isValidKey(count(side1, token), count(side2, token));
+		return valid;
+	}
+
+	public Set<String> getValidCommonKeySet(){
+		boolean[] valid=getValidCommonKeys();
+		Set<String> output=new HashSet<String>();
+		for(int token=0; token<valid.length; token++)
+			if(valid[token])
+				output.add(dictionary.getToken(token));
+		return output;
+	}
+
+	/*
+	 * Makes the current state the one later deltas are compared with, once the
+	 * output for it has been written: the valid keys become those of now, and no
+	 * key or record counts as changed any more.
+	 */
+	public void commit(){
+		validBefore=getValidCommonKeys();
+		changedKeys.clear();
+		side1.upsertedIDs.clear();
+		side2.upsertedIDs.clear();
+	}
+
+	/*
+	 * Returns a BlockPurging object holding the live rows, in their original
+	 * order followed by the upserted rows. It shares the dictionary, and is
+	 * rebuilt after further changes.
+	 */
+	public BlockPurging getBlockPurging(){
+		if(compacted==null){
+			BlockPurging obj=new BlockPurging();
+			obj.dictionary=dictionary;
+			obj.blockThresh=blockThresh;
+			obj.pairWiseThresh=pairWiseThresh;
+			copyLiveRows(side1, obj.IDs1, obj.instances1);
+			copyLiveRows(side2, obj.IDs2, obj.instances2);
+			compacted=obj;
+		}
+		return compacted;
+	}
+
+	private static void copyLiveRows(Side side, ArrayList<String> IDs, ArrayList<int[]> instances){
+		IDs.ensureCapacity(side.IDs.size()-side.deleted.cardinality());
+		instances.ensureCapacity(side.IDs.size()-side.deleted.cardinality());
+		for(int row=0; row<side.IDs.size(); row++)
+			if(!side.deleted.get(row)){
+				IDs.add(side.IDs.get(row));
+				instances.add(side.instances.get(row));
+			}
+	}
+
+	/*
+	 * Returns the candidate pairs, as ID ordinals of getBlockPurging(), that the
+	 * delta may have changed: every candidate of an upserted record, and every
+	 * pair sharing a key that the delta made valid. Only the postings of those
+	 * keys are built.
+	 */
+	public CandidatePairs buildAffectedPairs(){
+		BlockPurging obj=getBlockPurging();
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		boolean[] valid=getValidCommonKeys();
+		int[] upserted1=toOrdinals(side1.upsertedIDs, ids1);
+		int[] upserted2=toOrdinals(side2.upsertedIDs, ids2);
+
+		boolean[] keys=new boolean[valid.length];
+		markValidKeys(obj.instances1, ids1, upserted1, valid, keys);
+		markValidKeys(obj.instances2, ids2, upserted2, valid, keys);
+		ArrayList<Integer> newlyValid=new ArrayList<Integer>();
+		for(int token=changedKeys.nextSetBit(0); token>=0; token=changedKeys.nextSetBit(token+1))
+			if(valid[token] && (token>=validBefore.length || !validBefore[token])){
+				keys[token]=true;
+				newlyValid.add(token);
+			}
+		int[][] postings1=BlockPurging.buildPostings(obj.instances1, keys);
+		int[][] postings2=BlockPurging.buildPostings(obj.instances2, keys);
+
+		CandidatePairs.Builder builder=new CandidatePairs.Builder();
+		for(int ordinal1: upserted1)
+			for(int k=ids1.ordinalStart[ordinal1]; k<ids1.ordinalStart[ordinal1+1]; k++)
+				for(int token: obj.instances1.get(ids1.rowsByOrdinal[k]))
+					if(keys[token] && postings2[token]!=null)
+						for(int row2: postings2[token])
+							builder.add(ordinal1, ids2.ordinalOf(row2));
+		for(int ordinal2: upserted2)
+			for(int k=ids2.ordinalStart[ordinal2]; k<ids2.ordinalStart[ordinal2+1]; k++)
+				for(int token: obj.instances2.get(ids2.rowsByOrdinal[k]))
+					if(keys[token] && postings1[token]!=null)
+						for(int row1: postings1[token])
+							builder.add(ids1.ordinalOf(row1), ordinal2);
+		for(int token: newlyValid)
+			for(int row1: postings1[token])
+				for(int row2: postings2[token])
+					builder.add(ids1.ordinalOf(row1), ids2.ordinalOf(row2));
+		return builder.build();
+	}
+
+	private static int[] toOrdinals(Set<String> IDs, SortedIDs ids){
+		int[] ordinals=new int[IDs.size()];
+		int count=0;
+		for(String id: IDs){
+			int ordinal=ids.ordinalOf(id);
+			if(ordinal>=0)
+				ordinals[count++]=ordinal;
+		}
+		return Arrays.copyOf(ordinals, count);
+	}
+
+	private static void markValidKeys(ArrayList<int[]> instances, SortedIDs ids, int[] ordinals,
+			boolean[] valid, boolean[] keys){
+		for(int ordinal: ordinals)
+			for(int k=ids.ordinalStart[ordinal]; k<ids.ordinalStart[ordinal+1]; k++)
+				for(int token: instances.get(ids.rowsByOrdinal[k]))
+					if(valid[token])
+						keys[token]=true;
+	}
+
+	/*
+	 * Of the given pairs, e.g. the matches found before the delta, returns those
+	 * the delta cannot have changed: pairs without an upserted record that still
+	 * share a valid key. Pairs are ID ordinals of getBlockPurging().
+	 */
+	public CandidatePairs retainUnaffectedCandidates(CandidatePairs pairs){
+		BlockPurging obj=getBlockPurging();
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		boolean[] valid=getValidCommonKeys();
+		boolean[] isUpserted1=new boolean[ids1.size()];
+		for(int ordinal1: toOrdinals(side1.upsertedIDs, ids1))
+			isUpserted1[ordinal1]=true;
+		boolean[] isUpserted2=new boolean[ids2.size()];
+		for(int ordinal2: toOrdinals(side2.upsertedIDs, ids2))
+			isUpserted2[ordinal2]=true;
+
+		CandidatePairs.Builder builder=new CandidatePairs.Builder();
+		for(int i=0; i<pairs.size(); i++){
+			int ordinal1=pairs.first(i);
+			int ordinal2=pairs.second(i);
+			if(isUpserted1[ordinal1] || isUpserted2[ordinal2])
+				continue;
+			if(sharesValidKey(obj, ids1, ordinal1, ids2, ordinal2, valid))
+				builder.add(ordinal1, ordinal2);
+		}
+		return builder.build();
+	}
+
+	/*
+	 * As in buildCandidatePairs, an ID is a candidate through any of its rows.
+	 */
+	private static boolean sharesValidKey(BlockPurging obj, SortedIDs ids1, int ordinal1,
+			SortedIDs ids2, int ordinal2, boolean[] valid){
+		for(int k1=ids1.ordinalStart[ordinal1]; k1<ids1.ordinalStart[ordinal1+1]; k1++)
+			for(int k2=ids2.ordinalStart[ordinal2]; k2<ids2.ordinalStart[ordinal2+1]; k2++){
+				int[] x=obj.instances1.get(ids1.rowsByOrdinal[k1]);
+				int[] y=obj.instances2.get(ids2.rowsByOrdinal[k2]);
+				int i=0;
+				int j=0;
+				while(i<x.length && j<y.length){
+					if(x[i]<y[j])
+						i++;
+					else if(x[i]>y[j])
+						j++;
+					else if(valid[x[i]])
+						return true;
+					else{
+						i++;
+						j++;
+					}
+				}
+			}
+		return false;
+	}
+
+}
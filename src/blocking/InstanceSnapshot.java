@@ -0,0 +1,226 @@
+package blocking;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class InstanceSnapshot {
+
+	/**
+	 * Saves the parsed state of a BlockPurging object (the token dictionary, IDs1,
+	 * IDs2, both instance lists and the field selection) to a compact binary file,
+	 * and loads it back with a single read through its channel. A snapshot
+	 * records the size and modification time of both source CSVs, and is treated
+	 * as stale if either has changed, or if it was built from a different field
+	 * selection. A snapshot saved without source files (e.g. the state of
+	 * IncrementalBlocking, which no longer matches any file) records no sources,
+	 * and is loaded without checking them.
+	 *
+	 * The layout is big-endian:
+	 * magic, version,
+	 * size1, lastModified1, size2, lastModified2 (longs),
+	 * number of fields (-1 for all fields), field indices,
+	 * number of tokens, tokens,
+	 * number of rows1, then per row its ID and token ids (count, then ids),
+	 * number of rows2, likewise.
+	 * Strings are stored as a byte count followed by UTF-8 bytes.
+	 *
+	 * The file is read into a heap buffer rather than mapped, since a mapping
+	 * stays live until it is garbage collected, and on Windows a file with a live
+	 * mapping cannot be rewritten, so a stale snapshot could never be replaced.
+	 * Saving writes a temporary file next to the snapshot and renames it over
+	 * the old one, so an interrupted save leaves the previous snapshot intact.
+	 */
+
+	static final int MAGIC=0x46454953;	//"FEIS"
+	static final int VERSION=1;
+	static final Charset UTF8=Charset.forName("UTF-8");
+
+	/*
+	 * fieldsToPopulate is the selection obj was built with; null means all fields.
+	 * file1 and file2 may be null if obj does not correspond to source files.
+	 */
+	public static void save(BlockPurging obj, Set<Integer> fieldsToPopulate, String file1,
+			String file2, String snapshotFile) throws IOException{
+		File target=new File(snapshotFile).getAbsoluteFile();
+		File temp=File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+		boolean saved=false;
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 1<<16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeSource(out, file1);
+			writeSource(out, file2);
+			if(fieldsToPopulate==null)
+				out.writeInt(-1);
+			else{
+				Set<Integer> fields=new TreeSet<Integer>(fieldsToPopulate);
+				out.writeInt(fields.size());
+				for(int field: fields)
+					out.writeInt(field);
+			}
+			out.writeInt(obj.dictionary.size());
+			for(String token: obj.dictionary.tokens)
+				writeString(out, token);
+			writeRows(out, obj.IDs1, obj.instances1);
+			writeRows(out, obj.IDs2, obj.instances2);
+			out.close();
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			saved=true;
+		}finally{
+			out.close();
+			if(!saved)
+				temp.delete();
+		}
+	}
+
+	/*
+	 * Returns the BlockPurging object stored in snapshotFile, or null if there is
+	 * no snapshot, it is from another version, or it is stale with respect to
+	 * file1, file2 or fieldsToPopulate, or is truncated or otherwise damaged. If
+	 * file1 and file2 are null, the sources are not checked.
+	 */
+	public static BlockPurging load(String snapshotFile, String file1, String file2,
+			Set<Integer> fieldsToPopulate) throws IOException{
+		if(!new File(snapshotFile).isFile())
+			return null;
+		ByteBuffer in=read(snapshotFile);
+		if(in==null)
+			return null;
+		try{
+			if(in.remaining()<8 || in.getInt()!=MAGIC || in.getInt()!=VERSION)
+				return null;
+			if(!matchesSource(in, file1) || !matchesSource(in, file2))
+				return null;
+			int numFields=in.getInt();
+			if(numFields<0){
+				if(fieldsToPopulate!=null)
+					return null;
+			}else{
+				Set<Integer> fields=new TreeSet<Integer>();
+				for(int i=0; i<numFields; i++)
+					fields.add(in.getInt());
+				if(fieldsToPopulate==null || !fields.equals(new TreeSet<Integer>(fieldsToPopulate)))
+					return null;
+			}
+
+			BlockPurging obj=new BlockPurging();
+			int numTokens=readLength(in, 4);
+			for(int i=0; i<numTokens; i++)
+				obj.dictionary.intern(readString(in));
+			readRows(in, obj.IDs1, obj.instances1, numTokens);
+			readRows(in, obj.IDs2, obj.instances2, numTokens);
+			return obj;
+		}catch(RuntimeException e){
+			//a truncated or damaged snapshot: underflows, bad lengths and the like
+			return null;
+		}
+	}
+
+	/*
+	 * Reads the whole file into a heap buffer, or returns null if it is too large
+	 * to be a snapshot this class wrote.
+	 */
+	private static ByteBuffer read(String snapshotFile) throws IOException{
+		FileInputStream stream=new FileInputStream(snapshotFile);
+		try{
+			FileChannel channel=stream.getChannel();
+			long size=channel.size();
+			if(size>Integer.MAX_VALUE)
+				return null;
+			ByteBuffer in=ByteBuffer.allocate((int) size);
+			while(in.hasRemaining() && channel.read(in)>=0);
+			in.flip();
+			return in;
+		}finally{
+			stream.close();
+		}
+	}
+
+	private static void writeSource(DataOutputStream out, String file) throws IOException{
+		if(file==null){
+			out.writeLong(-1);
+			out.writeLong(-1);
+			return;
+		}
+		File source=new File(file);
+		out.writeLong(source.length());
+		out.writeLong(source.lastModified());
+	}
+
+	private static boolean matchesSource(ByteBuffer in, String file){
+		long length=in.getLong();
+		long lastModified=in.getLong();
+		if(file==null)
+			return true;
+		File source=new File(file);
+		return source.isFile() && source.length()==length && source.lastModified()==lastModified;
+	}
+
+	private static void writeRows(DataOutputStream out, ArrayList<String> IDs,
+			ArrayList<int[]> instances) throws IOException{
+		out.writeInt(IDs.size());
+		for(int row=0; row<IDs.size(); row++){
+			writeString(out, IDs.get(row));
+			int[] instance=instances.get(row);
+			out.writeInt(instance.length);
+			for(int id: instance)
+				out.writeInt(id);
+		}
+	}
+
+	private static void readRows(ByteBuffer in, ArrayList<String> IDs, ArrayList<int[]> instances,
+			int numTokens){
+		//every row takes at least 8 bytes
+		int numRows=readLength(in, 8);
+		IDs.ensureCapacity(numRows);
+		instances.ensureCapacity(numRows);
+		for(int row=0; row<numRows; row++){
+			IDs.add(readString(in));
+			int[] instance=new int[readLength(in, 4)];
+			in.asIntBuffer().get(instance);
+			in.position(in.position()+4*instance.length);
+			for(int id: instance)
+				if(id<0 || id>=numTokens)
+					throw new IllegalArgumentException("Bad token id "+id+" in snapshot");
+			instances.add(instance);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException{
+		byte[] bytes=s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/*
+	 * Reads a count of items of at least unitBytes each, and checks that the
+	 * rest of the buffer can hold them, so that a damaged count fails here
+	 * instead of allocating a huge array.
+	 */
+	private static int readLength(ByteBuffer in, int unitBytes){
+		int length=in.getInt();
+		if(length<0 || length>in.remaining()/unitBytes)
+			throw new IllegalArgumentException("Bad length "+length+" in snapshot");
+		return length;
+	}
+
+	private static String readString(ByteBuffer in){
+		byte[] bytes=new byte[readLength(in, 1)];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+}
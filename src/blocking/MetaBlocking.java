@@ -0,0 +1,324 @@
+package blocking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+public class MetaBlocking {
+
+	/**
+	 * Meta-blocking over the bilateral blocks of a set of bkvs (Papadakis et al.).
+	 * The candidate pairs of buildCandidatePairs are the edges of a blocking
+	 * graph, and every edge is weighted by the blocks (bkvs) its two IDs share,
+	 * with one of these weighting schemes:
+	 *
+	 * CBS, the number of common blocks;
+	 * ECBS, CBS scaled by log(|B|/|B1|)*log(|B|/|B2|), where |B| is the number of
+	 * blocks and |B1|, |B2| those of the two IDs, so that IDs in few blocks weigh
+	 * more;
+	 * JS, the Jaccard score of the block sets of the two IDs.
+	 *
+	 * Edges are then pruned with one of these schemes:
+	 *
+	 * WEP keeps the edges whose weight is at least the mean weight of all edges;
+	 * CNP keeps, for every ID of either file, its k heaviest edges, where k is
+	 * the number of block assignments per ID unless set with setCardinality.
+	 *
+	 * Only the surviving pairs are returned, so the matchers score far fewer
+	 * pairs, and their effect can be measured with printReductionRatio and
+	 * printPairsCompleteness. As in streamCandidates, the blocks of an ID are those
+	 * of all of its rows. Ties are broken by ID ordinal, so the result is
+	 * deterministic.
+	 */
+
+	public static final int CBS=0;
+	public static final int ECBS=1;
+	public static final int JS=2;
+
+	public static final int WEP=0;
+	public static final int CNP=1;
+
+	BlockPurging obj;
+	int weightingScheme;
+	int pruningScheme;
+	int cardinality=0;
+
+	/*
+	 * The blocks of every ID ordinal, as sorted key ids, and the ID2 ordinals of
+	 * every block; only keys that have IDs in both files are blocks.
+	 */
+	int[][] blocks1;
+	int[][] blocks2;
+	int[][] postings2;
+	int numBlocks;
+	long blockAssignments;
+	long numEdges;
+
+	public MetaBlocking(BlockPurging obj, int weightingScheme, int pruningScheme){
+		if(weightingScheme<CBS || weightingScheme>JS)
+			throw new IllegalArgumentException("Unknown weighting scheme "+weightingScheme);
+		if(pruningScheme<WEP || pruningScheme>CNP)
+			throw new IllegalArgumentException("Unknown pruning scheme "+pruningScheme);
+		this.obj=obj;
+		this.weightingScheme=weightingScheme;
+		this.pruningScheme=pruningScheme;
+	}
+
+	/*
+	 * The number of edges CNP keeps per ID; 0 derives it from the blocks.
+	 */
+	public void setCardinality(int cardinality){
+		this.cardinality=cardinality;
+	}
+
+	/*
+	 * The number of edges of the blocking graph before pruning, i.e. the pairs
+	 * that BlockPurging.buildCandidatePairs returns for the same bkvs.
+	 */
+	public long getNumEdges(){
+		return numEdges;
+	}
+
+	/*
+	 * Receives the edges of one ID1 ordinal: the first count entries of ordinals2,
+	 * sorted, with their weights. The arrays are reused across calls.
+	 */
+	interface EdgeVisitor{
+		void visit(int ordinal1, int[] ordinals2, double[] weights, int count);
+	}
+
+	/*
+	 * Returns the pairs of ID ordinals that share a bkv and survive pruning.
+	 */
+	public CandidatePairs buildCandidatePairs(Set<String> bkvs){
+		buildBlocks(obj.toKeyMask(bkvs));
+		if(pruningScheme==WEP)
+			return pruneEdges();
+		return pruneNodes();
+	}
+
+	/*
+	 * The same pairs, in the shape of BlockPurging.buildBilateralBlocks.
+	 */
+	public Map<String, Set<String>> buildBilateralBlocks(Set<String> bkvs){
+		return obj.toBilateralBlocks(buildCandidatePairs(bkvs));
+	}
+
+	private void buildBlocks(boolean[] isBkv){
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		blocks1=blocksByOrdinal(obj.instances1, ids1, isBkv);
+		blocks2=blocksByOrdinal(obj.instances2, ids2, isBkv);
+		int[] sizes1=new int[isBkv.length];
+		int[] sizes2=new int[isBkv.length];
+		for(int[] blocks: blocks1)
+			for(int key: blocks)
+				sizes1[key]++;
+		for(int[] blocks: blocks2)
+			for(int key: blocks)
+				sizes2[key]++;
+
+		//keys that only one file has are not blocks
+		boolean[] isBlock=new boolean[isBkv.length];
+		numBlocks=0;
+		blockAssignments=0;
+		for(int key=0; key<isBkv.length; key++)
+			if(sizes1[key]>0 && sizes2[key]>0){
+				isBlock[key]=true;
+				numBlocks++;
+				blockAssignments+=sizes1[key]+sizes2[key];
+			}
+		retainBlocks(blocks1, isBlock);
+		retainBlocks(blocks2, isBlock);
+
+		postings2=new int[isBkv.length][];
+		for(int key=0; key<isBkv.length; key++)
+			if(isBlock[key])
+				postings2[key]=new int[sizes2[key]];
+		int[] fill=new int[isBkv.length];
+		for(int ordinal2=0; ordinal2<blocks2.length; ordinal2++)
+			for(int key: blocks2[ordinal2])
+				postings2[key][fill[key]++]=ordinal2;
+	}
+
+	/*
+	 * The sorted, distinct bkvs of the rows of every ordinal. PrefixFilterJoin
+	 * checks for a shared bkv with these too.
+	 */
+	static int[][] blocksByOrdinal(ArrayList<int[]> instances, SortedIDs ids,
+			boolean[] isBkv){
+		int[][] blocks=new int[ids.size()][];
+		int[] scratch=new int[16];
+		for(int ordinal=0; ordinal<ids.size(); ordinal++){
+			int count=0;
+			for(int k=ids.ordinalStart[ordinal]; k<ids.ordinalStart[ordinal+1]; k++)
+				for(int id: instances.get(ids.rowsByOrdinal[k])){
+					if(id>=isBkv.length || !isBkv[id])
+						continue;
+					if(count==scratch.length)
+						scratch=Arrays.copyOf(scratch, 2*count);
+					scratch[count++]=id;
+				}
+			Arrays.sort(scratch, 0, count);
+			int distinct=0;
+			for(int i=0; i<count; i++)
+				if(distinct==0 || scratch[distinct-1]!=scratch[i])
+					scratch[distinct++]=scratch[i];
+			blocks[ordinal]=Arrays.copyOf(scratch, distinct);
+		}
+		return blocks;
+	}
+
+	private static void retainBlocks(int[][] blocks, boolean[] isBlock){
+		for(int ordinal=0; ordinal<blocks.length; ordinal++){
+			int count=0;
+			for(int key: blocks[ordinal])
+				if(isBlock[key])
+					blocks[ordinal][count++]=key;
+			if(count<blocks[ordinal].length)
+				blocks[ordinal]=Arrays.copyOf(blocks[ordinal], count);
+		}
+	}
+
+	/*
+	 * Streams the weighted edges one ID1 ordinal at a time, counting the common
+	 * blocks of its ID2s with a counter array over the ID2 ordinals.
+	 */
+	void streamEdges(EdgeVisitor visitor){
+		int[] common=new int[blocks2.length];
+		int[] touched=new int[blocks2.length];
+		double[] weights=new double[blocks2.length];
+		numEdges=0;
+		for(int ordinal1=0; ordinal1<blocks1.length; ordinal1++){
+			int count=0;
+			for(int key: blocks1[ordinal1])
+				for(int ordinal2: postings2[key])
+					if(common[ordinal2]++==0)
+						touched[count++]=ordinal2;
+			if(count==0)
+				continue;
+			numEdges+=count;
+			Arrays.sort(touched, 0, count);
+			for(int i=0; i<count; i++){
+				int ordinal2=touched[i];
+				weights[i]=weight(common[ordinal2], blocks1[ordinal1].length, blocks2[ordinal2].length);
+				common[ordinal2]=0;
+			}
+			visitor.visit(ordinal1, touched, weights, count);
+		}
+	}
+
+	double weight(int commonBlocks, int blocksOf1, int blocksOf2){
+		if(weightingScheme==CBS)
+			return commonBlocks;
+		if(weightingScheme==ECBS)
+			return commonBlocks*Math.log(1.0*numBlocks/blocksOf1)*Math.log(1.0*numBlocks/blocksOf2);
+		return 1.0*commonBlocks/(blocksOf1+blocksOf2-commonBlocks);
+	}
+
+	/*
+	 * WEP: one pass for the mean weight, and one to keep the edges that reach it.
+	 */
+	private CandidatePairs pruneEdges(){
+		final double[] total={0.0};
+		final long[] edges={0};
+		streamEdges(new EdgeVisitor(){
+			public void visit(int ordinal1, int[] ordinals2, double[] weights, int count){
+				for(int i=0; i<count; i++)
+					total[0]+=weights[i];
+				edges[0]+=count;
+			}
+		});
+		final double meanWeight=edges[0]==0 ? 0.0 : total[0]/edges[0];
+		final CandidatePairs.Builder builder=new CandidatePairs.Builder();
+		streamEdges(new EdgeVisitor(){
+			public void visit(int ordinal1, int[] ordinals2, double[] weights, int count){
+				for(int i=0; i<count; i++)
+					if(weights[i]>=meanWeight)
+						builder.add(ordinal1, ordinals2[i]);
+			}
+		});
+		return builder.build();
+	}
+
+	/*
+	 * CNP: the top-k edges of every ID1 come from its own group of edges, and
+	 * those of every ID2 are collected along the way; an edge survives if it is
+	 * in either.
+	 */
+	private CandidatePairs pruneNodes(){
+		int k=cardinality;
+		if(k<=0){
+			long numIDs=blocks1.length+blocks2.length;
+			k=(int) Math.max(1, numIDs==0 ? 1 : blockAssignments/numIDs);
+		}
+		final TopEdges top1=new TopEdges(1, k);
+		final TopEdges top2=new TopEdges(blocks2.length, k);
+		final CandidatePairs.Builder builder=new CandidatePairs.Builder();
+		streamEdges(new EdgeVisitor(){
+			public void visit(int ordinal1, int[] ordinals2, double[] weights, int count){
+				top1.clear(0);
+				for(int i=0; i<count; i++){
+					top1.offer(0, ordinals2[i], weights[i]);
+					top2.offer(ordinals2[i], ordinal1, weights[i]);
+				}
+				for(int j=0; j<top1.size(0); j++)
+					builder.add(ordinal1, top1.other(0, j));
+			}
+		});
+		for(int ordinal2=0; ordinal2<blocks2.length; ordinal2++)
+			for(int j=0; j<top2.size(ordinal2); j++)
+				builder.add(top2.other(ordinal2, j), ordinal2);
+		return builder.build();
+	}
+
+	/*
+	 * The k heaviest edges of each of a number of nodes, heaviest first, with
+	 * ties going to the lower ordinal, in flat arrays.
+	 */
+	static class TopEdges{
+		int k;
+		int[] sizes;
+		int[] others;
+		double[] weights;
+
+		TopEdges(int numNodes, int k){
+			this.k=k;
+			sizes=new int[numNodes];
+			others=new int[numNodes*k];
+			weights=new double[numNodes*k];
+		}
+
+		void clear(int node){
+			sizes[node]=0;
+		}
+
+		int size(int node){
+			return sizes[node];
+		}
+
+		int other(int node, int j){
+			return others[node*k+j];
+		}
+
+		void offer(int node, int other, double weight){
+			int base=node*k;
+			int size=sizes[node];
+			int i=size;
+			while(i>0 && (weights[base+i-1]<weight
+					|| (weights[base+i-1]==weight && others[base+i-1]>other)))
+				i--;
+			if(i==k)
+				return;
+			int last=Math.min(size, k-1);
+			System.arraycopy(weights, base+i, weights, base+i+1, last-i);
+			System.arraycopy(others, base+i, others, base+i+1, last-i);
+			weights[base+i]=weight;
+			others[base+i]=other;
+			if(size<k)
+				sizes[node]++;
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+package blocking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class MinHashBlocker {
+
+	/**
+	 * A MinHash blocker with banded locality-sensitive hashing, as an alternative
+	 * to the token-based purging of buildValidCommonKeySet. Every instance gets a
+	 * signature of bands*rows MinHash values over its token set, and two
+	 * instances from different files become a candidate pair if all rows of at
+	 * least one band agree. A pair with Jaccard score s is then a candidate with
+	 * probability 1-(1-s^rows)^bands (see candidateProbability), so bands and
+	 * rows trade candidate volume against the recall expected at a given
+	 * threshold, instead of cutting skewed tokens with pairWiseThresh.
+	 *
+	 * The work is linear in the total number of tokens times bands*rows, plus
+	 * sorting the bucket keys of every band, and the candidates found. Band keys
+	 * are folded to 32 bits, so unrelated instances collide in a band with
+	 * probability about 2^-32; such pairs only add a few extra candidates.
+	 * As with buildCandidatePairs, the token set of an ID is the union of those
+	 * of all its rows, so an ID with several rows is a candidate through any of
+	 * them. IDs without tokens have no signature and are never candidates.
+	 */
+
+	static final long DEFAULT_SEED=2016;
+
+	BlockPurging obj;
+	int bands;
+	int rows;
+
+	/*
+	 * The parameters of the bands*rows hash functions.
+	 */
+	long[] multipliers;
+	long[] offsets;
+
+	public MinHashBlocker(BlockPurging obj, int bands, int rows){
+		this(obj, bands, rows, DEFAULT_SEED);
+	}
+
+	public MinHashBlocker(BlockPurging obj, int bands, int rows, long seed){
+		if(bands<1 || rows<1)
+			throw new IllegalArgumentException("MinHashBlocker needs positive bands and rows, got "
+					+bands+" and "+rows);
+		this.obj=obj;
+		this.bands=bands;
+		this.rows=rows;
+		Random random=new Random(seed);
+		multipliers=new long[bands*rows];
+		offsets=new long[bands*rows];
+		for(int i=0; i<multipliers.length; i++){
+			multipliers[i]=random.nextLong() | 1;
+			offsets[i]=random.nextLong();
+		}
+	}
+
+	/*
+	 * The probability that a pair with the given Jaccard score agrees on at least
+	 * one band, i.e. becomes a candidate.
+	 */
+	public static double candidateProbability(double jaccardScore, int bands, int rows){
+		return 1.0-Math.pow(1.0-Math.pow(jaccardScore, rows), bands);
+	}
+
+	/*
+	 * Returns the deduplicated pairs of ID ordinals (see SortedIDs) that share a
+	 * bucket in at least one band. Bands are bucketed one at a time, so no full
+	 * signatures are kept.
+	 */
+	public CandidatePairs buildCandidatePairs(){
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		CandidatePairs.Builder builder=new CandidatePairs.Builder();
+		for(int band=0; band<bands; band++){
+			long[] buckets1=bucketize(obj.instances1, ids1, band);
+			long[] buckets2=bucketize(obj.instances2, ids2, band);
+			join(buckets1, buckets2, builder);
+		}
+		return builder.build();
+	}
+
+	/*
+	 * The same pairs, in the shape of BlockPurging.buildBilateralBlocks.
+	 */
+	public Map<String, Set<String>> buildBilateralBlocks(){
+		return obj.toBilateralBlocks(buildCandidatePairs());
+	}
+
+	/*
+	 * Returns, sorted, the 32-bit band key of every ID ordinal in the high half of
+	 * a long, with the ordinal in the low half. The MinHash of the union of the
+	 * rows of an ordinal is the minimum over all of their tokens.
+	 */
+	private long[] bucketize(ArrayList<int[]> instances, SortedIDs ids, int band){
+		long[] buckets=new long[ids.size()];
+		int count=0;
+		for(int ordinal=0; ordinal<ids.size(); ordinal++){
+			int from=ids.ordinalStart[ordinal];
+			int to=ids.ordinalStart[ordinal+1];
+			boolean hasTokens=false;
+			for(int k=from; k<to && !hasTokens; k++)
+				hasTokens=instances.get(ids.rowsByOrdinal[k]).length>0;
+			if(!hasTokens)
+				continue;
+			long key=band;
+			for(int row=band*rows; row<(band+1)*rows; row++){
+				long min=Long.MAX_VALUE;
+				for(int k=from; k<to; k++)
+					for(int token: instances.get(ids.rowsByOrdinal[k])){
+						long h=mix(multipliers[row]*token+offsets[row]);
+						if(h<min)
+							min=h;
+					}
+				key=mix(key^min);
+			}
+			buckets[count++]=(key & 0xFFFFFFFF00000000L) | ordinal;
+		}
+		Arrays.sort(buckets, 0, count);
+		return Arrays.copyOf(buckets, count);
+	}
+
+	/*
+	 * Adds every pair of ordinals that share a band key, by merging the sorted
+	 * buckets of the two files.
+	 */
+	private static void join(long[] buckets1, long[] buckets2, CandidatePairs.Builder builder){
+		int i=0;
+		int j=0;
+		while(i<buckets1.length && j<buckets2.length){
+			long key1=buckets1[i]>>32;
+			long key2=buckets2[j]>>32;
+			if(key1<key2)
+				i++;
+			else if(key1>key2)
+				j++;
+			else{
+				int end1=i;
+				while(end1<buckets1.length && buckets1[end1]>>32==key1)
+					end1++;
+				int end2=j;
+				while(end2<buckets2.length && buckets2[end2]>>32==key2)
+					end2++;
+				for(int a=i; a<end1; a++)
+					for(int b=j; b<end2; b++)
+						builder.add((int) buckets1[a], (int) buckets2[b]);
+				i=end1;
+				j=end2;
+			}
+		}
+	}
+
+	/*
+	 * The finalizer of MurmurHash3, which spreads every input bit over the output.
+	 */
+	static long mix(long h){
+		h^=h>>>33;
+		h*=0xff51afd7ed558ccdL;
+		h^=h>>>33;
+		h*=0xc4ceb9fe1a85ec53L;
+		h^=h>>>33;
+		return h;
+	}
+
+}
@@ -0,0 +1,190 @@
+package blocking;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ParallelInstanceLoader {
+
+	/**
+	 * Loads the two input files of BlockPurging concurrently. One reader thread per
+	 * file cuts it into line-aligned chunks, which are parsed and tokenized on a
+	 * shared worker pool. The calling thread consumes the chunks of file1 and then
+	 * of file2 in their original order, and is the only one that touches the
+	 * token dictionary, so IDs, instances and token ids are exactly what the
+	 * serial constructors produce. Lines are split by BufferedReader, so unlike
+	 * Scanner, U+2028, U+2029 and U+0085 are not treated as line breaks.
+	 */
+
+	static final int CHUNK_LINES=8192;
+
+	/*
+	 * The end-of-file marker in a chunk queue.
+	 */
+	private static final Future<ParsedChunk> END=new java.util.concurrent.FutureTask<ParsedChunk>(
+			new Callable<ParsedChunk>(){
+				public ParsedChunk call(){
+					return null;
+				}
+			});
+
+	Set<Integer> fieldsToPopulate;
+	int numThreads;
+
+	/*
+	 * A null fieldsToPopulate means every non-ID field is tokenized.
+	 */
+	public ParallelInstanceLoader(Set<Integer> fieldsToPopulate, int numThreads){
+		this.fieldsToPopulate=fieldsToPopulate;
+		this.numThreads=Math.max(1, numThreads);
+	}
+
+	/*
+	 * The parsed rows of one chunk, in order.
+	 */
+	static class ParsedChunk{
+		ArrayList<String> IDs=new ArrayList<String>();
+		ArrayList<Set<String>> tokens=new ArrayList<Set<String>>();
+	}
+
+	/*
+	 * Fails if either file cannot be read or a chunk cannot be parsed, as target
+	 * would otherwise hold only part of the rows.
+	 */
+	public void load(String file1, String file2, BlockPurging target) throws IOException{
+		ExecutorService workers=Executors.newFixedThreadPool(numThreads);
+		//bounds the number of chunks in flight per file
+		BlockingQueue<Future<ParsedChunk>> chunks1=new ArrayBlockingQueue<Future<ParsedChunk>>(4*numThreads);
+		BlockingQueue<Future<ParsedChunk>> chunks2=new ArrayBlockingQueue<Future<ParsedChunk>>(4*numThreads);
+		Exception[] readFailures=new Exception[2];
+		Thread reader1=startReader(file1, workers, chunks1, readFailures, 0);
+		Thread reader2=startReader(file2, workers, chunks2, readFailures, 1);
+		try{
+			consume(chunks1, target.IDs1, target.instances1, target.dictionary);
+			consume(chunks2, target.IDs2, target.instances2, target.dictionary);
+			reader1.join();
+			reader2.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading "+file1+" and "+file2);
+		}catch(ExecutionException e){
+			Throwable cause=e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException("Parsing failed", cause);
+		}finally{
+			workers.shutdownNow();
+			//if consuming failed, the readers may be blocked on full queues
+			reader1.interrupt();
+			reader2.interrupt();
+			chunks1.clear();
+			chunks2.clear();
+		}
+		for(Exception failure: readFailures){
+			if(failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if(failure!=null)
+				throw (IOException) failure;
+		}
+	}
+
+	private void consume(BlockingQueue<Future<ParsedChunk>> chunks, ArrayList<String> IDs,
+			ArrayList<int[]> instances, TokenDictionary dictionary)
+			throws InterruptedException, ExecutionException{
+		while(true){
+			Future<ParsedChunk> future=chunks.take();
+			if(future==END)
+				return;
+			ParsedChunk chunk=future.get();
+			IDs.addAll(chunk.IDs);
+			for(Set<String> tokens: chunk.tokens)
+				instances.add(dictionary.encode(tokens));
+		}
+	}
+
+	/*
+	 * Starts a thread that reads file, bypassing its header, and submits every
+	 * CHUNK_LINES lines to workers. The futures are queued in file order, followed
+	 * by END, which is queued even if reading fails; the failure, an IOException or
+	 * a RuntimeException such as a rejected submission, is then left in
+	 * failures[index]. An interrupted reader stops without queueing END.
+	 */
+	private Thread startReader(final String file, final ExecutorService workers,
+			final BlockingQueue<Future<ParsedChunk>> chunks, final Exception[] failures,
+			final int index){
+		Thread reader=new Thread(new Runnable(){
+			public void run(){
+				BufferedReader in=null;
+				try{
+					in=new BufferedReader(new FileReader(file));
+					//bypass header
+					in.readLine();
+					ArrayList<String> lines=new ArrayList<String>(CHUNK_LINES);
+					String line;
+					while((line=in.readLine())!=null){
+						lines.add(line);
+						if(lines.size()==CHUNK_LINES){
+							chunks.put(workers.submit(parseTask(lines)));
+							lines=new ArrayList<String>(CHUNK_LINES);
+						}
+					}
+					if(!lines.isEmpty())
+						chunks.put(workers.submit(parseTask(lines)));
+				}catch(IOException e){
+					failures[index]=e;
+				}catch(RuntimeException e){
+					failures[index]=e;
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}finally{
+					try{
+						if(in!=null)
+							in.close();
+					}catch(IOException e){
+						if(failures[index]==null)
+							failures[index]=e;
+					}
+					try{
+						chunks.put(END);
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}, "instance-reader-"+file);
+		reader.setDaemon(true);
+		reader.start();
+		return reader;
+	}
+
+	private Callable<ParsedChunk> parseTask(final ArrayList<String> lines){
+		return new Callable<ParsedChunk>(){
+			public ParsedChunk call(){
+				CsvScanner parser=new CsvScanner();
+				Tokenizer fieldTokenizer=new Tokenizer();
+				ParsedChunk chunk=new ParsedChunk();
+				for(String line: lines){
+					Set<String> tokens=new HashSet<String>();
+					chunk.IDs.add(BlockPurging.parseInstance(line, parser, fieldTokenizer,
+							fieldsToPopulate, tokens));
+					chunk.tokens.add(tokens);
+				}
+				return chunk;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,233 @@
+package blocking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+public class PrefixFilterJoin {
+
+	/**
+	 * A PPJoin-style threshold similarity join over the token sets of a
+	 * BlockPurging object. Tokens are ordered by increasing global document
+	 * frequency (over both instance sets), so that every record's prefix holds its
+	 * rarest tokens. Only the prefixes of instances2 are indexed, and only the
+	 * prefixes of instances1 probe the index. Candidates must further pass a
+	 * length filter and a positional filter before their Jaccard score is
+	 * verified. The pairs returned are exactly the pairs whose Jaccard score
+	 * passes the threshold, computed the same way as Exploratory.computeJaccard.
+	 *
+	 * If a set of bkvs is given, a pair must additionally share at least one bkv,
+	 * which reproduces the pairs of buildBilateralBlocks that pass the threshold.
+	 * Records with duplicate IDs (see buildIDMap) are scored by their last row,
+	 * which is also the row the matchers score, but as in streamCandidates their
+	 * bkvs are those of all of their rows.
+	 */
+
+	/*
+	 * Absorbs floating point error in the bounds; a slightly looser bound can only
+	 * let an extra candidate through to verification.
+	 */
+	private static final double EPSILON=1e-9;
+
+	BlockPurging obj;
+
+	/*
+	 * The instances of obj, with every token id replaced by its rank in the global
+	 * frequency order, and re-sorted. Rows that are not the last row of their ID
+	 * are null.
+	 */
+	int[][] ordered1;
+	int[][] ordered2;
+
+	/*
+	 * Indexed by rank, the original token id.
+	 */
+	int[] tokenOfRank;
+
+	public PrefixFilterJoin(BlockPurging obj){
+		this.obj=obj;
+		int[] counts=obj.countTokens(obj.instances1);
+		int[] counts2=obj.countTokens(obj.instances2);
+		for(int id=0; id<counts.length; id++)
+			counts[id]+=counts2[id];
+
+		//sort token ids by (frequency, id); packing into a long keeps this primitive
+		long[] order=new long[counts.length];
+		for(int id=0; id<counts.length; id++)
+			order[id]=((long) counts[id]<<32) | id;
+		Arrays.sort(order);
+		int[] rankOfToken=new int[counts.length];
+		tokenOfRank=new int[counts.length];
+		for(int rank=0; rank<order.length; rank++){
+			int id=(int) order[rank];
+			rankOfToken[id]=rank;
+			tokenOfRank[rank]=id;
+		}
+
+		ordered1=reorder(obj.instances1, obj.getSortedIDs1(), rankOfToken);
+		ordered2=reorder(obj.instances2, obj.getSortedIDs2(), rankOfToken);
+	}
+
+	private static int[][] reorder(ArrayList<int[]> instances, SortedIDs IDs, int[] rankOfToken){
+		int[][] result=new int[instances.size()][];
+		for(int row=0; row<instances.size(); row++){
+			if(IDs.rowOf(IDs.ordinalOf(row))!=row)
+				continue;
+			int[] instance=instances.get(row);
+			int[] ranks=new int[instance.length];
+			for(int i=0; i<instance.length; i++)
+				ranks[i]=rankOfToken[instance[i]];
+			Arrays.sort(ranks);
+			result[row]=ranks;
+		}
+		return result;
+	}
+
+	/*
+	 * The smallest overlap a record of the given size needs with any other record
+	 * for their Jaccard score to reach threshold.
+	 */
+	static int minOverlap(int size, double threshold){
+		return Math.max(1, (int) Math.ceil(threshold*size-EPSILON));
+	}
+
+	static int prefixLength(int size, double threshold){
+		return Math.max(0, Math.min(size, size-minOverlap(size, threshold)+1));
+	}
+
+	/*
+	 * Returns the pairs of ID ordinals, like buildCandidatePairs, whose Jaccard
+	 * score is above threshold (or equal to it, if not strict). The threshold must
+	 * be positive. If bkvs is not null, pairs must also share a bkv.
+	 */
+	public CandidatePairs join(double threshold, boolean strict, Set<String> bkvs){
+		if(threshold<=0)
+			throw new IllegalArgumentException("PrefixFilterJoin needs a positive threshold, got "+threshold);
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		int[][] bkvs1=null;
+		int[][] bkvs2=null;
+		if(bkvs!=null){
+			boolean[] isBkv=obj.toKeyMask(bkvs);
+			bkvs1=MetaBlocking.blocksByOrdinal(obj.instances1, ids1, isBkv);
+			bkvs2=MetaBlocking.blocksByOrdinal(obj.instances2, ids2, isBkv);
+		}
+
+		//index the prefixes of instances2: for every rank, rows and positions
+		int[] sizes=new int[tokenOfRank.length];
+		for(int[] instance: ordered2)
+			if(instance!=null)
+				for(int i=0; i<prefixLength(instance.length, threshold); i++)
+					sizes[instance[i]]++;
+		int[][] postingRows=new int[tokenOfRank.length][];
+		int[][] postingPositions=new int[tokenOfRank.length][];
+		for(int rank=0; rank<sizes.length; rank++)
+			if(sizes[rank]>0){
+				postingRows[rank]=new int[sizes[rank]];
+				postingPositions[rank]=new int[sizes[rank]];
+			}
+		Arrays.fill(sizes, 0);
+		for(int row=0; row<ordered2.length; row++){
+			int[] instance=ordered2[row];
+			if(instance==null)
+				continue;
+			for(int i=0; i<prefixLength(instance.length, threshold); i++){
+				int rank=instance[i];
+				postingRows[rank][sizes[rank]]=row;
+				postingPositions[rank][sizes[rank]]=i;
+				sizes[rank]++;
+			}
+		}
+		sizes=null;
+
+		//probe with the prefixes of instances1. overlap[row2] is -1 once pruned.
+		CandidatePairs.Builder output=new CandidatePairs.Builder();
+		int[] overlap=new int[ordered2.length];
+		int[] touched=new int[ordered2.length];
+		for(int row1=0; row1<ordered1.length; row1++){
+			int[] x=ordered1[row1];
+			if(x==null || x.length==0)
+				continue;
+			int numTouched=0;
+			double minSize=threshold*x.length-EPSILON;
+			double maxSize=x.length/threshold+EPSILON;
+			for(int i=0; i<prefixLength(x.length, threshold); i++){
+				int[] rows=postingRows[x[i]];
+				if(rows==null)
+					continue;
+				int[] positions=postingPositions[x[i]];
+				for(int p=0; p<rows.length; p++){
+					int row2=rows[p];
+					if(overlap[row2]<0)
+						continue;
+					int ySize=ordered2[row2].length;
+					if(ySize<minSize || ySize>maxSize)
+						continue;
+					int alpha=(int) Math.ceil(threshold/(1+threshold)*(x.length+ySize)-EPSILON);
+					int upperBound=1+Math.min(x.length-i-1, ySize-positions[p]-1);
+					if(overlap[row2]==0)
+						touched[numTouched++]=row2;
+					if(overlap[row2]+upperBound>=alpha)
+						overlap[row2]++;
+					else
+						overlap[row2]=-1;
+				}
+			}
+
+			for(int t=0; t<numTouched; t++){
+				int row2=touched[t];
+				int ordinal1=ids1.ordinalOf(row1);
+				int ordinal2=ids2.ordinalOf(row2);
+				if(overlap[row2]>0 && verify(x, ordered2[row2], threshold, strict)
+						&& (bkvs==null || sharesKey(bkvs1[ordinal1], bkvs2[ordinal2])))
+					output.add(ordinal1, ordinal2);
+				overlap[row2]=0;
+			}
+		}
+		return output.build();
+	}
+
+	/*
+	 * Computes the exact score by a merge, in the same way as
+	 * Exploratory.computeJaccard.
+	 */
+	private static boolean verify(int[] x, int[] y, double threshold, boolean strict){
+		int intersection=0;
+		int i=0;
+		int j=0;
+		while(i<x.length && j<y.length){
+			if(x[i]<y[j])
+				i++;
+			else if(x[i]>y[j])
+				j++;
+			else{
+				intersection++;
+				i++;
+				j++;
+			}
+		}
+		int union=x.length+y.length-intersection;
+		if(union==0)
+			return false;
+		double jaccardScore=1.0*intersection/union;
+		return jaccardScore>threshold || (!strict && jaccardScore==threshold);
+	}
+
+	/*
+	 * Whether two sorted arrays of key ids have a key in common.
+	 */
+	private static boolean sharesKey(int[] keys1, int[] keys2){
+		int i=0;
+		int j=0;
+		while(i<keys1.length && j<keys2.length){
+			if(keys1[i]<keys2[j])
+				i++;
+			else if(keys1[i]>keys2[j])
+				j++;
+			else
+				return true;
+		}
+		return false;
+	}
+
+}
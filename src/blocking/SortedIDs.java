@@ -0,0 +1,83 @@
+package blocking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SortedIDs {
+
+	/**
+	 * The distinct IDs of one instance list in sorted order, with mappings between
+	 * rows and ordinals (positions in that order). IDs that occur on several rows
+	 * share an ordinal, and, as in buildIDMap, the ordinal resolves to the last of
+	 * those rows.
+	 */
+
+	String[] ids;
+	int[] ordinalOfRow;
+	int[] rowOfOrdinal;
+
+	/*
+	 * All rows, sorted by ordinal and then by row, and for every ordinal the
+	 * position of its first row in that list (with a sentinel at the end).
+	 */
+	int[] rowsByOrdinal;
+	int[] ordinalStart;
+
+	public SortedIDs(ArrayList<String> IDs){
+		String[] sorted=IDs.toArray(new String[IDs.size()]);
+		Arrays.sort(sorted);
+		int count=0;
+		for(int i=0; i<sorted.length; i++)
+			if(count==0 || !sorted[count-1].equals(sorted[i]))
+				sorted[count++]=sorted[i];
+		ids=Arrays.copyOf(sorted, count);
+
+		Map<String, Integer> ordinals=new HashMap<String, Integer>();
+		for(int i=0; i<ids.length; i++)
+			ordinals.put(ids[i], i);
+		ordinalOfRow=new int[IDs.size()];
+		rowOfOrdinal=new int[ids.length];
+		ordinalStart=new int[ids.length+1];
+		for(int row=0; row<IDs.size(); row++){
+			int ordinal=ordinals.get(IDs.get(row));
+			ordinalOfRow[row]=ordinal;
+			rowOfOrdinal[ordinal]=row;
+			ordinalStart[ordinal+1]++;
+		}
+		for(int i=0; i<ids.length; i++)
+			ordinalStart[i+1]+=ordinalStart[i];
+		rowsByOrdinal=new int[IDs.size()];
+		int[] fill=Arrays.copyOf(ordinalStart, ids.length);
+		for(int row=0; row<IDs.size(); row++)
+			rowsByOrdinal[fill[ordinalOfRow[row]]++]=row;
+	}
+
+	public int size(){
+		return ids.length;
+	}
+
+	public String getID(int ordinal){
+		return ids[ordinal];
+	}
+
+	public int ordinalOf(int row){
+		return ordinalOfRow[row];
+	}
+
+	/*
+	 * The row whose instance represents this ID, i.e. its last row.
+	 */
+	public int rowOf(int ordinal){
+		return rowOfOrdinal[ordinal];
+	}
+
+	/*
+	 * Returns the ordinal of id, or a negative number if it is not present.
+	 */
+	public int ordinalOf(String id){
+		return Arrays.binarySearch(ids, id);
+	}
+
+}
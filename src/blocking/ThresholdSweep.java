@@ -0,0 +1,227 @@
+package blocking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+public class ThresholdSweep {
+
+	/**
+	 * Computes the reduction ratio and pairs completeness of the bilateral blocks
+	 * for every point of a grid of (blockThresh, pairWiseThresh) values, in one
+	 * pass, instead of one rebuild per point. It relies on the valid keys growing
+	 * with both thresholds: a pair is a candidate at (B, P) iff it shares a key
+	 * whose counts are both at most B and whose product is at most P. So for every
+	 * B of the grid, it suffices to know the smallest such product over the keys a
+	 * pair shares, and the pair is a candidate for every P at or above it.
+	 *
+	 * The pass streams the candidates of the loosest grid point one ID1 at a time,
+	 * as streamCandidates does, keeping that smallest product per B for the ID2s
+	 * touched, and tallies them per grid point. Gold pairs are checked the same
+	 * way. The counts match printReductionRatio and printPairsCompleteness with
+	 * the thresholds set to each grid point.
+	 */
+
+	BlockPurging obj;
+	int[] blockThresholds;
+	int[] pairWiseThresholds;
+
+	/*
+	 * Indexed by blockThresh, then pairWiseThresh index.
+	 */
+	long[][] candidates;
+	long[][] truePositives;
+	int goldPairs;
+
+	/*
+	 * The grid values are sorted; duplicates are harmless.
+	 */
+	public ThresholdSweep(BlockPurging obj, int[] blockThresholds, int[] pairWiseThresholds){
+		this.obj=obj;
+		this.blockThresholds=blockThresholds.clone();
+		this.pairWiseThresholds=pairWiseThresholds.clone();
+		Arrays.sort(this.blockThresholds);
+		Arrays.sort(this.pairWiseThresholds);
+	}
+
+	/*
+	 * Computes the table. goldStandardFile has the format of printPairsCompleteness.
+	 */
+	public void run(String goldStandardFile){
+		int[] counts1=obj.countTokens(obj.instances1);
+		int[] counts2=obj.countTokens(obj.instances2);
+		int numB=blockThresholds.length;
+		int maxB=blockThresholds[numB-1];
+		int maxP=pairWiseThresholds[pairWiseThresholds.length-1];
+
+		//firstB[k] is the first blockThresh index at which key k passes, or numB
+		int[] firstB=new int[counts1.length];
+		long[] product=new long[counts1.length];
+		boolean[] isKey=new boolean[counts1.length];
+		for(int k=0; k<counts1.length; k++){
+			product[k]=(long) counts1[k]*counts2[k];
+			int maxCount=Math.max(counts1[k], counts2[k]);
+			firstB[k]=numB;
+			if(counts1[k]==0 || counts2[k]==0 || maxCount>maxB || product[k]>maxP)
+				continue;
+			isKey[k]=true;
+			firstB[k]=firstIndexAtLeast(blockThresholds, maxCount);
+		}
+
+		candidates=new long[numB][pairWiseThresholds.length];
+		sweepCandidates(isKey, firstB, product);
+		truePositives=new long[numB][pairWiseThresholds.length];
+		sweepGold(goldStandardFile, isKey, firstB, product);
+	}
+
+	private void sweepCandidates(boolean[] isKey, int[] firstB, long[] product){
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		int numB=blockThresholds.length;
+		int[][] postings2=BlockPurging.buildPostings(obj.instances2, isKey);
+		for(int[] posting: postings2)
+			if(posting!=null)
+				for(int i=0; i<posting.length; i++)
+					posting[i]=ids2.ordinalOf(posting[i]);
+
+		//minProduct[b][ordinal2] is the smallest product of a key shared with the current ID1
+		long[][] minProduct=new long[numB][ids2.size()];
+		for(long[] row: minProduct)
+			Arrays.fill(row, Long.MAX_VALUE);
+		boolean[] marked=new boolean[ids2.size()];
+		int[] touched=new int[ids2.size()];
+		for(int ordinal1=0; ordinal1<ids1.size(); ordinal1++){
+			int count=0;
+			for(int r=ids1.ordinalStart[ordinal1]; r<ids1.ordinalStart[ordinal1+1]; r++)
+				for(int k: obj.instances1.get(ids1.rowsByOrdinal[r])){
+					if(postings2[k]==null)
+						continue;
+					for(int ordinal2: postings2[k]){
+						if(!marked[ordinal2]){
+							marked[ordinal2]=true;
+							touched[count++]=ordinal2;
+						}
+						for(int b=firstB[k]; b<numB; b++)
+							if(product[k]<minProduct[b][ordinal2])
+								minProduct[b][ordinal2]=product[k];
+					}
+				}
+			for(int i=0; i<count; i++){
+				int ordinal2=touched[i];
+				marked[ordinal2]=false;
+				for(int b=0; b<numB; b++){
+					tally(candidates[b], minProduct[b][ordinal2]);
+					minProduct[b][ordinal2]=Long.MAX_VALUE;
+				}
+			}
+		}
+		prefixSums(candidates);
+	}
+
+	private void sweepGold(String goldStandardFile, boolean[] isKey, int[] firstB, long[] product){
+		Map<String, Set<String>> goldSet=BlockPurging.buildGoldSet(goldStandardFile, true);
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		int numB=blockThresholds.length;
+		long[] minProduct=new long[numB];
+		goldPairs=0;
+		for(String id1: goldSet.keySet())
+			for(String id2: goldSet.get(id1)){
+				goldPairs++;
+				int ordinal1=ids1.ordinalOf(id1);
+				int ordinal2=ids2.ordinalOf(id2);
+				if(ordinal1<0 || ordinal2<0)
+					continue;
+				Arrays.fill(minProduct, Long.MAX_VALUE);
+				for(int r1=ids1.ordinalStart[ordinal1]; r1<ids1.ordinalStart[ordinal1+1]; r1++)
+					for(int r2=ids2.ordinalStart[ordinal2]; r2<ids2.ordinalStart[ordinal2+1]; r2++)
+						for(int k: sharedKeys(obj.instances1.get(ids1.rowsByOrdinal[r1]),
+								obj.instances2.get(ids2.rowsByOrdinal[r2]), isKey))
+							for(int b=firstB[k]; b<numB; b++)
+								minProduct[b]=Math.min(minProduct[b], product[k]);
+				for(int b=0; b<numB; b++)
+					tally(truePositives[b], minProduct[b]);
+			}
+		prefixSums(truePositives);
+	}
+
+	private static ArrayList<Integer> sharedKeys(int[] x, int[] y, boolean[] isKey){
+		ArrayList<Integer> keys=new ArrayList<Integer>();
+		int i=0;
+		int j=0;
+		while(i<x.length && j<y.length){
+			if(x[i]<y[j])
+				i++;
+			else if(x[i]>y[j])
+				j++;
+			else{
+				if(isKey[x[i]])
+					keys.add(x[i]);
+				i++;
+				j++;
+			}
+		}
+		return keys;
+	}
+
+	/*
+	 * Counts a pair with the given smallest product at the first pairWiseThresh
+	 * it passes; prefix sums then give the count at every pairWiseThresh.
+	 */
+	private void tally(long[] counts, long minProduct){
+		if(minProduct>pairWiseThresholds[pairWiseThresholds.length-1])
+			return;
+		counts[firstIndexAtLeast(pairWiseThresholds, minProduct)]++;
+	}
+
+	private static void prefixSums(long[][] counts){
+		for(long[] row: counts)
+			for(int p=1; p<row.length; p++)
+				row[p]+=row[p-1];
+	}
+
+	private static int firstIndexAtLeast(int[] sorted, long value){
+		int low=0;
+		int high=sorted.length;
+		while(low<high){
+			int mid=(low+high)>>>1;
+			if(sorted[mid]<value)
+				low=mid+1;
+			else
+				high=mid;
+		}
+		return low;
+	}
+
+	/*
+	 * Writes the table as a CSV with a header, one line per grid point. The
+	 * reduction ratio is computed as in printReductionRatio.
+	 */
+	public void write(PrintWriter out){
+		double exhaustiveSetSize=1.0*obj.instances1.size()*obj.instances2.size();
+		out.println("blockThresh,pairWiseThresh,candidates,RR,truePositives,PC");
+		for(int b=0; b<blockThresholds.length; b++)
+			for(int p=0; p<pairWiseThresholds.length; p++)
+				out.println(blockThresholds[b]+","+pairWiseThresholds[p]+","+candidates[b][p]+","
+						+(1.0-candidates[b][p]/exhaustiveSetSize)+","+truePositives[b][p]+","
+						+(1.0*truePositives[b][p])/goldPairs);
+	}
+
+	public void writeToFile(String outfile){
+		PrintWriter out=null;
+		try{
+			out=new PrintWriter(new File(outfile));
+			write(out);
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			if(out!=null)
+				out.close();
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package blocking;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class TokenDictionary {
+
+	/**
+	 * Interns tokens into dense int ids, so that instances can be stored as sorted
+	 * int[] rather than sets of strings. Ids are assigned in first-seen order, and
+	 * are never reused. The dictionary is not thread-safe; callers that tokenize
+	 * on several threads should encode on a single thread.
+	 */
+
+	/*
+	 * token->id, and the inverse list, where id is the position of the token
+	 */
+	Map<String, Integer> ids;
+	ArrayList<String> tokens;
+
+	public TokenDictionary(){
+		ids=new HashMap<String, Integer>();
+		tokens=new ArrayList<String>();
+	}
+
+	/*
+	 * Returns the id of token, adding it to the dictionary if it is not present.
+	 */
+	public int intern(String token){
+		Integer id=ids.get(token);
+		if(id==null){
+			id=tokens.size();
+			ids.put(token, id);
+			tokens.add(token);
+		}
+		return id;
+	}
+
+	/*
+	 * Returns the id of token, or -1 if the token was never interned.
+	 */
+	public int lookup(String token){
+		Integer id=ids.get(token);
+		return id==null ? -1 : id;
+	}
+
+	public String getToken(int id){
+		return tokens.get(id);
+	}
+
+	public int size(){
+		return tokens.size();
+	}
+
+	/*
+	 * Interns every token in the collection and returns the ids as a sorted,
+	 * duplicate-free array.
+	 */
+	public int[] encode(Collection<String> instance){
+		int[] result=new int[instance.size()];
+		int count=0;
+		for(String token: instance)
+			result[count++]=intern(token);
+		Arrays.sort(result);
+		return dedupSorted(result, count);
+	}
+
+	/*
+	 * Like encode, but never adds to the dictionary; unknown tokens are dropped.
+	 */
+	public int[] lookupAll(Collection<String> instance){
+		int[] result=new int[instance.size()];
+		int count=0;
+		for(String token: instance){
+			int id=lookup(token);
+			if(id>=0)
+				result[count++]=id;
+		}
+		Arrays.sort(result, 0, count);
+		return dedupSorted(result, count);
+	}
+
+	public Set<String> decode(int[] instance){
+		Set<String> result=new HashSet<String>();
+		for(int id: instance)
+			result.add(tokens.get(id));
+		return result;
+	}
+
+	private static int[] dedupSorted(int[] sorted, int length){
+		int count=0;
+		for(int i=0; i<length; i++)
+			if(count==0 || sorted[count-1]!=sorted[i])
+				sorted[count++]=sorted[i];
+		return count==sorted.length ? sorted : Arrays.copyOf(sorted, count);
+	}
+
+}
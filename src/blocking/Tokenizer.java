@@ -0,0 +1,96 @@
+package blocking;
+
+import java.util.Collection;
+
+public class Tokenizer {
+
+	/**
+	 * A single-pass replacement for the replaceAll/trim/split/toLowerCase chain
+	 * that BlockPurging originally ran over every field, using the delimiters of
+	 * BlockPurging.tokenizer. Its output is exactly the token set of that chain:
+	 *
+	 * (1) every delimiter, and every \s character, separates tokens;
+	 * (2) characters <= ' ' that are not \s (e.g. control characters) are kept
+	 * inside tokens, except at the very start or end of the field, where trim()
+	 * would have removed them;
+	 * (3) a field with no tokens yields the empty token "", since "".split(" ")
+	 * returns one empty string.
+	 *
+	 * An instance keeps a scratch buffer, so it must not be shared across threads.
+	 */
+
+	/*
+	 * Indexed by character; true for the characters the regexes in
+	 * BlockPurging.tokenizer match. "\\s+" covers [ \t\n\x0B\f\r].
+	 */
+	private static final boolean[] delimiters=new boolean[128];
+	static{
+		for(char c: "/,:;().\"_-#\\ \t\n\u000B\f\r".toCharArray())
+			delimiters[c]=true;
+	}
+
+	/*
+	 * String.toLowerCase() is locale-sensitive. We only take the ASCII fast
+	 * path when the default locale lower-cases ASCII the usual way.
+	 */
+	private static final boolean asciiLowerCaseIsSafe="I".toLowerCase().equals("i");
+
+	private char[] buffer=new char[64];
+
+	public static boolean isDelimiter(char c){
+		return c<128 && delimiters[c];
+	}
+
+	/*
+	 * Tokens separated only by delimiters would have been trimmed from the ends
+	 * of the field, along with all other characters <= ' '.
+	 */
+	private static boolean isTrimmed(char c){
+		return c<=' ' || isDelimiter(c);
+	}
+
+	/*
+	 * Adds the lower-cased tokens of field to tokens.
+	 */
+	public void tokenize(CharSequence field, Collection<String> tokens){
+		int start=0;
+		int end=field.length();
+		while(start<end && isTrimmed(field.charAt(start)))
+			start++;
+		while(end>start && isTrimmed(field.charAt(end-1)))
+			end--;
+		if(start==end){
+			tokens.add("");
+			return;
+		}
+
+		int tokenStart=start;
+		for(int i=start; i<=end; i++){
+			if(i<end && !isDelimiter(field.charAt(i)))
+				continue;
+			if(i>tokenStart)
+				tokens.add(lowerCase(field, tokenStart, i));
+			tokenStart=i+1;
+		}
+	}
+
+	private String lowerCase(CharSequence field, int start, int end){
+		int length=end-start;
+		if(buffer.length<length)
+			buffer=new char[Math.max(length, 2*buffer.length)];
+		boolean ascii=asciiLowerCaseIsSafe;
+		for(int i=0; i<length; i++){
+			char c=field.charAt(start+i);
+			if(c>=128)
+				ascii=false;
+			else if(c>='A' && c<='Z')
+				c=(char) (c+('a'-'A'));
+			buffer[i]=c;
+		}
+		if(ascii)
+			return new String(buffer, 0, length);
+		//fall back to the locale-aware conversion for anything else
+		return field.subSequence(start, end).toString().toLowerCase();
+	}
+
+}
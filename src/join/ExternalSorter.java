@@ -0,0 +1,218 @@
+package join;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class ExternalSorter implements LineSink {
+
+	/**
+	 * Sorts lines of text that need not fit in memory. Lines are buffered until
+	 * their estimated size reaches the memory budget, then sorted and written to
+	 * a temporary run file. writeTo merges the runs with a priority queue, reading
+	 * every run sequentially, and deletes them. At most MAX_FAN_IN runs are open
+	 * at once: with more, groups of them are first merged into longer runs, in as
+	 * many passes as needed. If nothing was spilled, the buffer is simply sorted
+	 * in memory. Lines are ordered by String.compareTo, so the output does not
+	 * depend on the order they were added in. With dedup, equal lines are written
+	 * once.
+	 */
+
+	static final Charset UTF8=Charset.forName("UTF-8");
+
+	/*
+	 * The most runs merged at once, well below common open-file limits.
+	 */
+	static final int MAX_FAN_IN=64;
+
+	long memoryBudgetBytes;
+	File tempFolder;
+	boolean dedup;
+
+	ArrayList<String> buffer=new ArrayList<String>();
+	long bufferedBytes=0;
+	ArrayList<File> runs=new ArrayList<File>();
+
+	/*
+	 * Runs are created in tempFolder, or the default temporary folder if it is
+	 * null.
+	 */
+	public ExternalSorter(long memoryBudgetBytes, File tempFolder, boolean dedup){
+		this.memoryBudgetBytes=memoryBudgetBytes;
+		this.tempFolder=tempFolder;
+		this.dedup=dedup;
+	}
+
+	/*
+	 * A rough size of a String on the heap, including its reference in a list.
+	 */
+	static long estimateBytes(String s){
+		return 56+2L*s.length();
+	}
+
+	public void add(String line) throws IOException{
+		buffer.add(line);
+		bufferedBytes+=estimateBytes(line);
+		if(bufferedBytes>=memoryBudgetBytes)
+			spill();
+	}
+
+	private void spill() throws IOException{
+		Collections.sort(buffer);
+		File run=File.createTempFile("sort-run", ".txt", tempFolder);
+		run.deleteOnExit();
+		runs.add(run);
+		Writer out=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(run), UTF8), 1<<16);
+		try{
+			String previous=null;
+			for(String line: buffer){
+				if(dedup && line.equals(previous))
+					continue;
+				out.write(line);
+				out.write('\n');
+				previous=line;
+			}
+		}finally{
+			out.close();
+		}
+		buffer.clear();
+		bufferedBytes=0;
+	}
+
+	/*
+	 * One run being merged, positioned at its current line.
+	 */
+	static class Run{
+		BufferedReader in;
+		String line;
+
+		Run(File file) throws IOException{
+			in=new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8), 1<<16);
+			line=in.readLine();
+		}
+
+		boolean advance() throws IOException{
+			line=in.readLine();
+			return line!=null;
+		}
+	}
+
+	/*
+	 * Passes every line, in sorted order, to out. The sorter is empty afterwards.
+	 */
+	public void writeTo(LineSink out) throws IOException{
+		if(runs.isEmpty()){
+			Collections.sort(buffer);
+			String previous=null;
+			for(String line: buffer){
+				if(dedup && line.equals(previous))
+					continue;
+				out.add(line);
+				previous=line;
+			}
+			buffer.clear();
+			bufferedBytes=0;
+			return;
+		}
+
+		if(!buffer.isEmpty())
+			spill();
+		try{
+			while(runs.size()>MAX_FAN_IN){
+				ArrayList<File> merged=new ArrayList<File>();
+				boolean passDone=false;
+				try{
+					for(int from=0; from<runs.size(); from+=MAX_FAN_IN){
+						File run=File.createTempFile("sort-run", ".txt", tempFolder);
+						run.deleteOnExit();
+						merged.add(run);
+						FileLineSink runOut=new FileLineSink(run);
+						try{
+							merge(runs.subList(from, Math.min(from+MAX_FAN_IN, runs.size())), runOut);
+						}finally{
+							runOut.close();
+						}
+					}
+					passDone=true;
+				}finally{
+					if(!passDone)
+						for(File file: merged)
+							file.delete();
+				}
+				for(File file: runs)
+					file.delete();
+				runs=merged;
+			}
+			merge(runs, out);
+		}finally{
+			for(File file: runs)
+				file.delete();
+			runs.clear();
+		}
+	}
+
+	/*
+	 * Merges the sorted runs into out, leaving the files in place.
+	 */
+	private void merge(List<File> files, LineSink out) throws IOException{
+		PriorityQueue<Run> queue=new PriorityQueue<Run>(files.size(), new Comparator<Run>(){
+			public int compare(Run run1, Run run2){
+				return run1.line.compareTo(run2.line);
+			}
+		});
+		ArrayList<Run> open=new ArrayList<Run>();
+		try{
+			for(File file: files){
+				Run run=new Run(file);
+				open.add(run);
+				if(run.line!=null)
+					queue.add(run);
+			}
+			String previous=null;
+			while(!queue.isEmpty()){
+				Run run=queue.poll();
+				if(!dedup || !run.line.equals(previous)){
+					out.add(run.line);
+					previous=run.line;
+				}
+				if(run.advance())
+					queue.add(run);
+			}
+		}finally{
+			for(Run run: open)
+				run.in.close();
+		}
+	}
+
+	/*
+	 * Writes the sorted lines to outputFile, after header unless it is null.
+	 */
+	public void writeTo(String outputFile, String header) throws IOException{
+		final PrintWriter out=new PrintWriter(new File(outputFile));
+		try{
+			if(header!=null)
+				out.println(header);
+			writeTo(new LineSink(){
+				public void add(String line){
+					out.println(line);
+				}
+			});
+		}finally{
+			out.close();
+		}
+	}
+
+}
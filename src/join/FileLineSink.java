@@ -0,0 +1,35 @@
+package join;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+class FileLineSink implements LineSink {
+
+	/**
+	 * Writes lines to a temporary file, such as a partition of HashJoin or a
+	 * merged run of ExternalSorter, in UTF-8 with \n line ends.
+	 */
+
+	static final Charset UTF8=Charset.forName("UTF-8");
+
+	Writer out;
+
+	FileLineSink(File file) throws IOException{
+		out=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), 1<<16);
+	}
+
+	public void add(String line) throws IOException{
+		out.write(line);
+		out.write('\n');
+	}
+
+	void close() throws IOException{
+		out.close();
+	}
+
+}
@@ -0,0 +1,297 @@
+package join;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import blocking.CsvScanner;
+
+public class HashJoin {
+
+	/**
+	 * An equi-join of any number of CSV files on their first column, such as the
+	 * FFIEC-LEI and FFIEC-SEC submission files on the FFIEC ID. Each output line
+	 * is the key followed by the remaining columns of every input, in input order,
+	 * for every combination of matching lines. Inputs are joined pairwise, left
+	 * to right, through temporary files.
+	 *
+	 * In each pairwise join the smaller file is the build side, loaded into a hash
+	 * table, and the larger is streamed past it. If the build side does not fit
+	 * in half the memory budget, both sides are first hash-partitioned on the key
+	 * into temporary files, and matching partitions are joined one at a time (a
+	 * Grace hash join); a partition that still does not fit is partitioned again
+	 * with another hash. Past MAX_DEPTH, such a partition is joined a block of
+	 * build lines at a time, streaming the other side past each block. The output
+	 * goes through an ExternalSorter with the other half of the budget, so it is
+	 * sorted and independent of hash order, and no more than the budget is held
+	 * in memory.
+	 *
+	 * The key is the first field, unquoted by a CsvScanner, and written back
+	 * quoted only if it must be; the other columns are copied as they are.
+	 */
+
+	static final Charset UTF8=Charset.forName("UTF-8");
+	static final int MAX_PARTITIONS=256;
+
+	/*
+	 * Past this depth, a partition that does not fit is joined in blocks, since it
+	 * may hold a single key that no hash can split.
+	 */
+	static final int MAX_DEPTH=4;
+
+	long memoryBudgetBytes;
+	File tempFolder;
+	CsvScanner parser=new CsvScanner();
+
+	/*
+	 * Temporary files are created in tempFolder, or the default temporary folder
+	 * if it is null.
+	 */
+	public HashJoin(long memoryBudgetBytes, File tempFolder){
+		this.memoryBudgetBytes=memoryBudgetBytes;
+		this.tempFolder=tempFolder;
+	}
+
+	/*
+	 * Joins the inputs, each of which has a header line, and writes the result to
+	 * outputFile, sorted, after header unless it is null.
+	 */
+	public void join(List<String> inputFiles, String outputFile, String header) throws IOException{
+		if(inputFiles.size()<2)
+			throw new IllegalArgumentException("HashJoin needs at least two inputs, got "+inputFiles.size());
+		ExternalSorter sorter=new ExternalSorter(memoryBudgetBytes/2, tempFolder, false);
+		File left=new File(inputFiles.get(0));
+		boolean leftIsInput=true;
+		ArrayList<File> intermediates=new ArrayList<File>();
+		try{
+			for(int i=1; i<inputFiles.size(); i++){
+				File right=new File(inputFiles.get(i));
+				if(i==inputFiles.size()-1){
+					joinPair(left, leftIsInput, right, true, sorter, 0);
+					break;
+				}
+				File joined=createTempFile("join");
+				intermediates.add(joined);
+				FileLineSink out=new FileLineSink(joined);
+				try{
+					joinPair(left, leftIsInput, right, true, out, 0);
+				}finally{
+					out.close();
+				}
+				left=joined;
+				leftIsInput=false;
+			}
+			sorter.writeTo(outputFile, header);
+		}finally{
+			for(File file: intermediates)
+				file.delete();
+		}
+	}
+
+	/*
+	 * Joins left and right into out, with the columns of left first. Each of them
+	 * is either an input file or a temporary file (see open).
+	 */
+	void joinPair(File left, boolean leftIsInput, File right, boolean rightIsInput,
+			LineSink out, int depth) throws IOException{
+		boolean leftBuilds=left.length()<=right.length();
+		File build=leftBuilds ? left : right;
+		boolean buildIsInput=leftBuilds ? leftIsInput : rightIsInput;
+		File probe=leftBuilds ? right : left;
+		boolean probeIsInput=leftBuilds ? rightIsInput : leftIsInput;
+		//at least 1, so that tiny budgets still divide
+		long tableBudget=Math.max(1, memoryBudgetBytes/2);
+		Map<String, ArrayList<String>> table=load(build, buildIsInput, tableBudget);
+		if(table!=null){
+			probe(table, probe, probeIsInput, leftBuilds, out);
+			return;
+		}
+		if(depth>=MAX_DEPTH){
+			joinInBlocks(build, buildIsInput, probe, probeIsInput, leftBuilds, tableBudget, out);
+			return;
+		}
+
+		//the build side does not fit: partition both sides, and join partition by partition
+		int numPartitions=(int) Math.min(MAX_PARTITIONS, Math.max(2, 4*build.length()/tableBudget+1));
+		File[] leftPartitions=partition(left, leftIsInput, numPartitions, depth);
+		File[] rightPartitions=null;
+		try{
+			rightPartitions=partition(right, rightIsInput, numPartitions, depth);
+			for(int p=0; p<numPartitions; p++)
+				if(leftPartitions[p].length()>0 && rightPartitions[p].length()>0)
+					joinPair(leftPartitions[p], false, rightPartitions[p], false, out, depth+1);
+		}finally{
+			delete(leftPartitions);
+			delete(rightPartitions);
+		}
+	}
+
+	/*
+	 * Loads key -> rest of line for the file, or returns null as soon as the
+	 * estimated size exceeds budget.
+	 */
+	private Map<String, ArrayList<String>> load(File file, boolean isInput, long budget)
+			throws IOException{
+		BufferedReader in=open(file, isInput);
+		try{
+			if(isInput)
+				in.readLine();
+			Map<String, ArrayList<String>> table=new HashMap<String, ArrayList<String>>();
+			return loadBlock(in, table, budget) ? null : table;
+		}finally{
+			in.close();
+		}
+	}
+
+	/*
+	 * Adds lines of in to table until the estimated size exceeds budget, and
+	 * returns whether it did, i.e. whether in may have more lines.
+	 */
+	private boolean loadBlock(BufferedReader in, Map<String, ArrayList<String>> table, long budget)
+			throws IOException{
+		long bytes=0;
+		String line;
+		while((line=in.readLine())!=null){
+			String key=parser.reset(line).fieldString(0);
+			ArrayList<String> rests=table.get(key);
+			if(rests==null){
+				rests=new ArrayList<String>(1);
+				table.put(key, rests);
+				bytes+=ExternalSorter.estimateBytes(key)+64;
+			}
+			String rest=restOf(line);
+			rests.add(rest);
+			bytes+=ExternalSorter.estimateBytes(rest);
+			if(bytes>budget)
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * A block nested-loop join: the build side is loaded a block at a time, and
+	 * the probe side is streamed past every block.
+	 */
+	private void joinInBlocks(File build, boolean buildIsInput, File probe, boolean probeIsInput,
+			boolean leftBuilds, long budget, LineSink out) throws IOException{
+		BufferedReader in=open(build, buildIsInput);
+		try{
+			if(buildIsInput)
+				in.readLine();
+			Map<String, ArrayList<String>> table=new HashMap<String, ArrayList<String>>();
+			boolean more=true;
+			while(more){
+				table.clear();
+				more=loadBlock(in, table, budget);
+				if(!table.isEmpty())
+					probe(table, probe, probeIsInput, leftBuilds, out);
+			}
+		}finally{
+			in.close();
+		}
+	}
+
+	private void probe(Map<String, ArrayList<String>> table, File file, boolean isInput,
+			boolean leftBuilds, LineSink out) throws IOException{
+		BufferedReader in=open(file, isInput);
+		try{
+			if(isInput)
+				in.readLine();
+			String line;
+			while((line=in.readLine())!=null){
+				String key=parser.reset(line).fieldString(0);
+				ArrayList<String> rests=table.get(key);
+				if(rests==null)
+					continue;
+				String rest=restOf(line);
+				String escapedKey=CsvScanner.escape(key);
+				for(String buildRest: rests)
+					out.add(escapedKey+","+(leftBuilds ? buildRest+","+rest : rest+","+buildRest));
+			}
+		}finally{
+			in.close();
+		}
+	}
+
+	/*
+	 * Splits the lines of file by the hash of their key, which depends on depth so
+	 * that repartitioning a partition does spread it.
+	 */
+	private File[] partition(File file, boolean isInput, int numPartitions, int depth) throws IOException{
+		File[] partitions=new File[numPartitions];
+		FileLineSink[] outs=new FileLineSink[numPartitions];
+		BufferedReader in=null;
+		try{
+			for(int p=0; p<numPartitions; p++){
+				partitions[p]=createTempFile("partition");
+				outs[p]=new FileLineSink(partitions[p]);
+			}
+			in=open(file, isInput);
+			if(isInput)
+				in.readLine();
+			String line;
+			while((line=in.readLine())!=null){
+				String key=parser.reset(line).fieldString(0);
+				outs[partitionOf(key, depth, numPartitions)].add(line);
+			}
+		}catch(IOException e){
+			delete(partitions);
+			throw e;
+		}finally{
+			if(in!=null)
+				in.close();
+			for(FileLineSink out: outs)
+				if(out!=null)
+					out.close();
+		}
+		return partitions;
+	}
+
+	/*
+	 * The raw columns after the key of the line the parser was last reset to.
+	 */
+	private String restOf(String line){
+		int keyEnd=parser.rawEnd(0);
+		return keyEnd<line.length() ? line.substring(keyEnd+1) : "";
+	}
+
+	static int partitionOf(String key, int depth, int numPartitions){
+		int h=key.hashCode()*(0x9E3779B1+2*depth);
+		h^=h>>>16;
+		return (h & 0x7FFFFFFF)%numPartitions;
+	}
+
+	/*
+	 * Input files have a header and are read in the platform encoding, as the
+	 * submission files are written. Temporary files have no header, and are
+	 * always UTF-8.
+	 */
+	private static BufferedReader open(File file, boolean isInput) throws IOException{
+		if(isInput)
+			return new BufferedReader(new FileReader(file), 1<<16);
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8), 1<<16);
+	}
+
+	private File createTempFile(String prefix) throws IOException{
+		File file=File.createTempFile(prefix, ".tmp", tempFolder);
+		file.deleteOnExit();
+		return file;
+	}
+
+	private static void delete(File[] files){
+		if(files==null)
+			return;
+		for(File file: files)
+			if(file!=null)
+				file.delete();
+	}
+
+}
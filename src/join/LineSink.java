@@ -0,0 +1,13 @@
+package join;
+
+import java.io.IOException;
+
+public interface LineSink {
+
+	/**
+	 * Receives lines of output, e.g. the rows of a join, one at a time.
+	 */
+
+	void add(String line) throws IOException;
+
+}
@@ -0,0 +1,296 @@
+package matching;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BandedPairSink {
+
+	/**
+	 * Writes scored pairs to any number of threshold bands in one pass. Every band
+	 * has its own file, written through a FileChannel with a large buffer. Lines
+	 * have the format id1,id2 (or id1,id2,score if writeScores is set) and are
+	 * encoded straight into the buffer, without building intermediate strings.
+	 * Characters are encoded as UTF-8 and lines end with line.separator, so for
+	 * ASCII IDs the files are byte-identical to the PrintWriter output the
+	 * matchers used to produce.
+	 *
+	 * With queuedBuffers>0, the files are written by a writer thread of their
+	 * own, so that the caller only encodes. A full buffer is queued for the writer,
+	 * which writes the buffers in queue order, hence in line order for each band,
+	 * and returns them to a pool of queuedBuffers spare buffers. When the pool is
+	 * empty, the caller waits for the writer: this bounds the memory held by
+	 * pending output at queuedBuffers buffers, and is the backpressure on scoring.
+	 */
+
+	static final int BUFFER_BYTES=1<<20;
+
+	ThresholdBand[] bands;
+	FileChannel[] channels;
+	ByteBuffer[] buffers;
+	boolean writeScores;
+	byte[] lineSeparator;
+	long[] counts;
+
+	/*
+	 * The writer thread and its queues, if writing is asynchronous. The first
+	 * error of the writer is kept in writeFailure, and rethrown to the caller.
+	 */
+	Thread writer;
+	BlockingQueue<QueuedWrite> writes;
+	BlockingQueue<ByteBuffer> spareBuffers;
+	volatile IOException writeFailure;
+
+	/*
+	 * A full buffer of one band; a null buffer stops the writer.
+	 */
+	static class QueuedWrite{
+		int band;
+		ByteBuffer buffer;
+
+		QueuedWrite(int band, ByteBuffer buffer){
+			this.band=band;
+			this.buffer=buffer;
+		}
+	}
+
+	/*
+	 * Opens (and truncates) the file of every band, and writes header to each of
+	 * them unless it is null. Bands must be sorted (see ThresholdBand).
+	 */
+	public BandedPairSink(List<ThresholdBand> bands, String header, boolean writeScores) throws IOException{
+		this(bands, header, writeScores, 0);
+	}
+
+	/*
+	 * Same as above, but with queuedBuffers>0 the files are written on a writer
+	 * thread, with that many buffers in flight at most.
+	 */
+	public BandedPairSink(List<ThresholdBand> bands, String header, boolean writeScores, 
+			int queuedBuffers) throws IOException{
+		ArrayList<ThresholdBand> sorted=new ArrayList<ThresholdBand>(bands);
+		Collections.sort(sorted);
+		if(bands.isEmpty() || !sorted.equals(bands))
+			throw new IllegalArgumentException("Bands must be non-empty and sorted: "+bands);
+		this.bands=bands.toArray(new ThresholdBand[bands.size()]);
+		this.writeScores=writeScores;
+		lineSeparator=System.getProperty("line.separator").getBytes("UTF-8");
+		counts=new long[this.bands.length];
+		channels=new FileChannel[this.bands.length];
+		buffers=new ByteBuffer[this.bands.length];
+		try{
+			for(int i=0; i<this.bands.length; i++){
+				channels[i]=new FileOutputStream(this.bands[i].outFile).getChannel();
+				buffers[i]=ByteBuffer.allocateDirect(BUFFER_BYTES);
+				if(header!=null){
+					put(i, header);
+					putLineSeparator(i);
+				}
+			}
+			if(queuedBuffers>0)
+				startWriter(queuedBuffers);
+		}catch(IOException e){
+			close();
+			throw e;
+		}
+	}
+
+	private void startWriter(int queuedBuffers){
+		writes=new ArrayBlockingQueue<QueuedWrite>(queuedBuffers+bands.length+1);
+		spareBuffers=new ArrayBlockingQueue<ByteBuffer>(queuedBuffers);
+		for(int i=0; i<queuedBuffers; i++)
+			spareBuffers.add(ByteBuffer.allocateDirect(BUFFER_BYTES));
+		writer=new Thread(new Runnable(){
+			public void run(){
+				try{
+					while(true){
+						QueuedWrite write=writes.take();
+						if(write.buffer==null)
+							return;
+						//after a failure, buffers are still recycled, so the caller does not block
+						if(writeFailure==null){
+							try{
+								writeFully(write.band, write.buffer);
+							}catch(IOException e){
+								writeFailure=e;
+							}
+						}
+						write.buffer.clear();
+						spareBuffers.put(write.buffer);
+					}
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "banded-pair-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/*
+	 * The pairs that fail this band fail every band, so scorers can use it to
+	 * filter pairs early.
+	 */
+	public ThresholdBand getLowestBand(){
+		return bands[0];
+	}
+
+	/*
+	 * The number of pairs written to each band so far, in band order.
+	 */
+	public long getCount(int band){
+		return counts[band];
+	}
+
+	public ThresholdBand getBand(int band){
+		return bands[band];
+	}
+
+	public int numBands(){
+		return bands.length;
+	}
+
+	/*
+	 * Writes the pair to every band it passes.
+	 */
+	public void accept(CharSequence id1, CharSequence id2, double jaccardScore) throws IOException{
+		for(int i=0; i<bands.length; i++){
+			if(!bands[i].passes(jaccardScore))
+				return;
+			counts[i]++;
+			put(i, id1);
+			put(i, ',');
+			put(i, id2);
+			if(writeScores){
+				put(i, ',');
+				put(i, Double.toString(jaccardScore));
+			}
+			putLineSeparator(i);
+		}
+	}
+
+	private void putLineSeparator(int band) throws IOException{
+		ensure(band, lineSeparator.length);
+		buffers[band].put(lineSeparator);
+	}
+
+	private void put(int band, char c) throws IOException{
+		ensure(band, 1);
+		buffers[band].put((byte) c);
+	}
+
+	private void put(int band, CharSequence chars) throws IOException{
+		ByteBuffer buffer=buffers[band];
+		int length=chars.length();
+		for(int i=0; i<length; i++){
+			char c=chars.charAt(i);
+			if(buffer.remaining()<4){
+				flush(band);
+				buffer=buffers[band];
+			}
+			if(c<0x80)
+				buffer.put((byte) c);
+			else if(c<0x800){
+				buffer.put((byte) (0xC0 | (c>>6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}else if(Character.isHighSurrogate(c) && i+1<length
+					&& Character.isLowSurrogate(chars.charAt(i+1))){
+				int codePoint=Character.toCodePoint(c, chars.charAt(++i));
+				buffer.put((byte) (0xF0 | (codePoint>>18)));
+				buffer.put((byte) (0x80 | ((codePoint>>12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((codePoint>>6) & 0x3F)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+			}else if(Character.isSurrogate(c))
+				buffer.put((byte) '?');
+			else{
+				buffer.put((byte) (0xE0 | (c>>12)));
+				buffer.put((byte) (0x80 | ((c>>6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	private void ensure(int band, int bytes) throws IOException{
+		if(buffers[band].remaining()<bytes)
+			flush(band);
+	}
+
+	private void flush(int band) throws IOException{
+		if(writer==null){
+			writeFully(band, buffers[band]);
+			buffers[band].clear();
+			return;
+		}
+		if(writeFailure!=null)
+			throw writeFailure;
+		try{
+			writes.put(new QueuedWrite(band, buffers[band]));
+			buffers[band]=spareBuffers.take();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing output of "+bands[band].outFile);
+		}
+	}
+
+	private void writeFully(int band, ByteBuffer buffer) throws IOException{
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channels[band].write(buffer);
+	}
+
+	/*
+	 * Flushes and closes every band file, after the writer thread, if any, has
+	 * written everything queued. Safe to call more than once, and after a failed
+	 * constructor.
+	 */
+	public void close() throws IOException{
+		IOException failure=null;
+		if(writer!=null){
+			try{
+				for(int i=0; i<channels.length; i++)
+					if(buffers[i].position()>0)
+						flush(i);
+			}catch(IOException e){
+				failure=e;
+			}
+			try{
+				writes.put(new QueuedWrite(-1, null));
+				writer.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				writer.interrupt();
+				if(failure==null)
+					failure=new InterruptedIOException("Interrupted while closing the band files");
+			}
+			if(failure==null)
+				failure=writeFailure;
+			writer=null;
+			//the remaining buffers are empty, or already reported as failed
+			for(int i=0; i<buffers.length; i++)
+				buffers[i]=null;
+		}
+		for(int i=0; i<channels.length; i++){
+			if(channels[i]==null)
+				continue;
+			try{
+				if(buffers[i]!=null)
+					flush(i);
+				channels[i].close();
+			}catch(IOException e){
+				if(failure==null)
+					failure=e;
+			}
+			channels[i]=null;
+		}
+		if(failure!=null)
+			throw failure;
+	}
+
+}
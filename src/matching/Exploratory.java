@@ -2,6 +2,7 @@ package matching;
 
 import java.util.*;
 import blocking.BlockPurging;
+import blocking.ColumnarInstances;
 
 public class Exploratory {
 	/**
@@ -23,7 +24,7 @@ public class Exploratory {
 		for(int field:fields)
 			fieldsToPopulate.add(field);
 		
-		BlockPurging setup=new BlockPurging(file1, file2, fieldsToPopulate);
+		BlockPurging setup=BlockPurging.load(file1, file2, fieldsToPopulate, 1);
 		Map<String, Integer> IDs1Map=BlockPurging.buildIDMap(setup.getIDs1());
 		Map<String, Integer> IDs2Map=BlockPurging.buildIDMap(setup.getIDs2());
 		Map<String, Set<String>> posGoldSet=BlockPurging.buildGoldSet(goldStandardFile, true);
@@ -34,8 +35,8 @@ public class Exploratory {
 		System.out.println("ID1\tID2\tJaccardScore");
 		for(String id1: posGoldSet.keySet())
 			for(String id2: posGoldSet.get(id1)){
-				Set<String> instance1=setup.getInstances1(IDs1Map.get(id1));
-				Set<String> instance2=setup.getInstances2(IDs2Map.get(id2));
+				int[] instance1=setup.getTokenIds1(IDs1Map.get(id1));
+				int[] instance2=setup.getTokenIds2(IDs2Map.get(id2));
 				System.out.println(id1+"\t"+id2+"\t"+computeJaccard(instance1, instance2));
 			}
 		
@@ -45,13 +46,63 @@ public class Exploratory {
 		System.out.println("ID1\tID2\tJaccardScore");
 		for(String id1: negGoldSet.keySet())
 			for(String id2: negGoldSet.get(id1)){
-				Set<String> instance1=setup.getInstances1(IDs1Map.get(id1));
-				Set<String> instance2=setup.getInstances2(IDs2Map.get(id2));
+				int[] instance1=setup.getTokenIds1(IDs1Map.get(id1));
+				int[] instance2=setup.getTokenIds2(IDs2Map.get(id2));
 				System.out.println(id1+"\t"+id2+"\t"+computeJaccard(instance1, instance2));
 			}
 		
 	}
 	
+	/*
+	 * The number of non-ID fields of the homogenized files; any extra columns of
+	 * malformed rows are left out of the subsets below.
+	 */
+	static final int NUM_FIELDS=5;
+	
+	/*
+	 * For every non-empty subset of the non-ID fields, prints the mean Jaccard
+	 * score of the positive and of the negative gold pairs over the union of those
+	 * fields. The files are parsed once, into a ColumnarInstances.
+	 */
+	public static void printMeanJaccardPerFieldSubset(String file1, String file2, 
+			String goldStandardFile){
+		ColumnarInstances columns=new ColumnarInstances(file1, file2);
+		Map<String, Integer> IDs1Map=BlockPurging.buildIDMap(columns.getIDs1());
+		Map<String, Integer> IDs2Map=BlockPurging.buildIDMap(columns.getIDs2());
+		Map<String, Set<String>> posGoldSet=BlockPurging.buildGoldSet(goldStandardFile, true);
+		Map<String, Set<String>> negGoldSet=BlockPurging.buildGoldSet(goldStandardFile, false);
+		
+		System.out.println("Fields\tMeanPositive\tMeanNegative");
+		int numSubsets=1<<NUM_FIELDS;
+		for(int subset=1; subset<numSubsets; subset++){
+			int fieldMask=subset<<1;
+			StringBuilder fields=new StringBuilder();
+			for(int field=1; field<=NUM_FIELDS; field++)
+				if((fieldMask & (1<<field))!=0)
+					fields.append(fields.length()==0 ? "" : ",").append(field);
+			System.out.println("{"+fields+"}\t"
+					+meanJaccard(columns, posGoldSet, IDs1Map, IDs2Map, fieldMask)+"\t"
+					+meanJaccard(columns, negGoldSet, IDs1Map, IDs2Map, fieldMask));
+		}
+	}
+	
+	private static double meanJaccard(ColumnarInstances columns, Map<String, Set<String>> goldSet, 
+			Map<String, Integer> IDs1Map, Map<String, Integer> IDs2Map, int fieldMask){
+		double sum=0.0;
+		int count=0;
+		for(String id1: goldSet.keySet())
+			for(String id2: goldSet.get(id1)){
+				if(!IDs1Map.containsKey(id1) || !IDs2Map.containsKey(id2))
+					continue;
+				double jaccardScore=columns.jaccard(IDs1Map.get(id1), IDs2Map.get(id2), fieldMask);
+				if(jaccardScore<0)
+					continue;
+				sum+=jaccardScore;
+				count++;
+			}
+		return count==0 ? 0.0 : sum/count;
+	}
+	
 	private static <T>int unionCardinality(Set<T> set1, Set<T> set2){
 		int result=set1.size();
 		for(T t: set2)
@@ -80,5 +131,147 @@ public class Exploratory {
 		
 		return 1.0*intersection/union;
 	}
+	
+	/*
+	 * Same as above, but over the sorted token-id arrays of BlockPurging. Both
+	 * cardinalities fall out of a single linear merge.
+	 */
+	public static double computeJaccard(int[] set1, int[] set2){
+		int intersection=intersectionCardinality(set1, set2);
+		int union=set1.length+set2.length-intersection;
+		if(union==0)
+			return -1.0;
+		
+		return 1.0*intersection/union;
+	}
+	
+	/*
+	 * Bounded verification: returns true iff computeJaccard(set1, set2) is above
+	 * threshold (or equal to it, if not strict), without always computing the
+	 * score. The union comes from the set sizes, and the intersection is counted in
+	 * a single merge that stops as soon as the pair can no longer reach the
+	 * threshold, or can no longer fall below it.
+	 */
+	public static boolean passesJaccard(int[] set1, int[] set2, double threshold, boolean strict){
+		int required=minPassingOverlap(set1.length, set2.length, threshold, strict);
+		if(required>Math.min(set1.length, set2.length))
+			return false;
+		if(required<=0)
+			return true;
+		int intersection=0;
+		int i=0;
+		int j=0;
+		while(i<set1.length && j<set2.length){
+			if(intersection+Math.min(set1.length-i, set2.length-j)<required)
+				return false;
+			if(set1[i]<set2[j])
+				i++;
+			else if(set1[i]>set2[j])
+				j++;
+			else{
+				if(++intersection>=required)
+					return true;
+				i++;
+				j++;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Returns computeJaccard(set1, set2) if it passes threshold as in passesJaccard,
+	 * and -1.0 otherwise. Only the early exit on failure is taken, since a passing
+	 * pair needs its exact score for banding.
+	 */
+	public static double computeJaccardAbove(int[] set1, int[] set2, double threshold, boolean strict){
+		int required=minPassingOverlap(set1.length, set2.length, threshold, strict);
+		if(required>Math.min(set1.length, set2.length))
+			return -1.0;
+		int intersection=0;
+		int i=0;
+		int j=0;
+		while(i<set1.length && j<set2.length){
+			if(intersection+Math.min(set1.length-i, set2.length-j)<required)
+				return -1.0;
+			if(set1[i]<set2[j])
+				i++;
+			else if(set1[i]>set2[j])
+				j++;
+			else{
+				intersection++;
+				i++;
+				j++;
+			}
+		}
+		if(intersection<required)
+			return -1.0;
+		return 1.0*intersection/(set1.length+set2.length-intersection);
+	}
+	
+	/*
+	 * Same as passesJaccard for Set representations. Only the smaller set is
+	 * iterated, with a hash lookup per element.
+	 */
+	public static boolean passesJaccard(Set<String> set1, Set<String> set2, double threshold, 
+			boolean strict){
+		Set<String> smaller=set1.size()<=set2.size() ? set1 : set2;
+		Set<String> larger=set1.size()<=set2.size() ? set2 : set1;
+		int required=minPassingOverlap(set1.size(), set2.size(), threshold, strict);
+		if(required>smaller.size())
+			return false;
+		if(required<=0)
+			return true;
+		int intersection=0;
+		int remaining=smaller.size();
+		for(String t: smaller){
+			if(intersection+remaining<required)
+				return false;
+			remaining--;
+			if(larger.contains(t) && ++intersection>=required)
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * The smallest intersection with which two sets of the given sizes pass
+	 * threshold, or more than the smaller size if they never can. Passing is
+	 * decided with the same double arithmetic as computeJaccard, so the bounded
+	 * methods agree with it exactly, even at the band edges.
+	 */
+	static int minPassingOverlap(int size1, int size2, double threshold, boolean strict){
+		int maxOverlap=Math.min(size1, size2);
+		int overlap=(int) Math.ceil(threshold*(size1+size2)/(1+threshold));
+		overlap=Math.max(0, Math.min(maxOverlap+1, overlap));
+		while(overlap>0 && passes(overlap-1, size1+size2, threshold, strict))
+			overlap--;
+		while(overlap<=maxOverlap && !passes(overlap, size1+size2, threshold, strict))
+			overlap++;
+		return overlap;
+	}
+	
+	private static boolean passes(int intersection, int sizeSum, double threshold, boolean strict){
+		int union=sizeSum-intersection;
+		double jaccardScore=union==0 ? -1.0 : 1.0*intersection/union;
+		return jaccardScore>threshold || (!strict && jaccardScore==threshold);
+	}
+	
+	static int intersectionCardinality(int[] set1, int[] set2){
+		int result=0;
+		int i=0;
+		int j=0;
+		while(i<set1.length && j<set2.length){
+			if(set1[i]<set2[j])
+				i++;
+			else if(set1[i]>set2[j])
+				j++;
+			else{
+				result++;
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
 
 }
@@ -3,23 +3,154 @@ package matching;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
 
+import blocking.AdaptivePurging;
+import blocking.BilateralBlocksFile;
 import blocking.BlockPurging;
+import blocking.CandidatePairs;
+import blocking.CsvScanner;
+import blocking.IncrementalBlocking;
+import blocking.MetaBlocking;
+import blocking.MinHashBlocker;
+import blocking.PrefixFilterJoin;
+import blocking.SortedIDs;
+import join.ExternalSorter;
+import join.HashJoin;
+import metrics.Metrics;
 
 public class JaccardMatcher {
 /**
  * I will use this class for implementing our Jaccard matcher. At present, I will assume
  * the blocks on the fly, and match on the fly, then write out to file accordingly.
+ * 
+ * Runs report per-phase metrics (load, keyCounting, blockBuilding, scoring,
+ * writing) to the registry set with Metrics.setRegistry, e.g. a
+ * JsonMetricsRegistry, which dumps them as JSON at the end of every run.
  *  
  */
+	
+	/*
+	 * If true, candidates come from a PrefixFilterJoin at the lowest threshold
+	 * a method writes, rather than from the full bilateral blocks. Only pairs
+	 * that pass that threshold survive, so far fewer pairs are scored, but the
+	 * output files are unchanged.
+	 */
+	static boolean prefixFilterJoin=false;
+	
+	public static void setPrefixFilterJoin(boolean prefixFilterJoin){
+		JaccardMatcher.prefixFilterJoin=prefixFilterJoin;
+	}
+	
+	/*
+	 * If set, candidates are read from this binary bilateral blocks file (see
+	 * BlockPurging.writeBilateralBlocksToBinaryFile) instead of being recomputed.
+	 * It must have been built from the same inputs and fields.
+	 */
+	static String candidateFile=null;
+	
+	public static void setCandidateFile(String candidateFile){
+		JaccardMatcher.candidateFile=candidateFile;
+	}
+	
+	/*
+	 * If set, candidates come from a MinHashBlocker with this many bands and rows
+	 * per band, instead of the bilateral blocks of the valid common keys. Unlike
+	 * the other settings, this changes the output: a pair that passes the
+	 * threshold is only found with the probability given by
+	 * MinHashBlocker.candidateProbability. Zero bands turn it off.
+	 */
+	static int minHashBands=0;
+	static int minHashRows=0;
+	
+	public static void setMinHashBlocking(int bands, int rows){
+		JaccardMatcher.minHashBands=bands;
+		JaccardMatcher.minHashRows=rows;
+	}
+	
+	/*
+	 * If true, the pairWiseThresh of the bilateral blocks is chosen from the
+	 * distribution of block sizes of the inputs (see AdaptivePurging), instead of
+	 * the fixed default, and the choice is printed. It does not apply to
+	 * candidateFile or minHash blocking.
+	 */
+	static boolean adaptivePurging=false;
+	
+	public static void setAdaptivePurging(boolean adaptivePurging){
+		JaccardMatcher.adaptivePurging=adaptivePurging;
+	}
+	
+	/*
+	 * If a MetaBlocking weighting scheme is set, the bilateral blocks of the valid
+	 * common keys are pruned with it and the given pruning scheme before anything
+	 * is scored. Like minHash blocking, this changes the output: it trades pairs
+	 * completeness for fewer comparisons. -1 turns it off, and it does not apply
+	 * to candidateFile, minHash blocking or prefixFilterJoin.
+	 */
+	static int metaBlockingWeighting=-1;
+	static int metaBlockingPruning=-1;
+	
+	public static void setMetaBlocking(int weightingScheme, int pruningScheme){
+		JaccardMatcher.metaBlockingWeighting=weightingScheme;
+		JaccardMatcher.metaBlockingPruning=pruningScheme;
+	}
+	
+	/*
+	 * The band files are written on a writer thread of their own, with at most
+	 * this many 1 MB buffers of output waiting for it (see BandedPairSink); when
+	 * they are all taken, scoring waits for the disk. Zero writes synchronously,
+	 * on the scoring thread. The files are the same either way.
+	 */
+	static int writeQueueBuffers=4;
+	
+	public static void setWriteQueueBuffers(int writeQueueBuffers){
+		JaccardMatcher.writeQueueBuffers=writeQueueBuffers;
+	}
+	
+	/*
+	 * Builds the candidate pairs for the given lowest output threshold.
+	 */
+	private static CandidatePairs buildCandidates(BlockPurging obj, double threshold, 
+			boolean strict) throws IOException{
+		Set<String> bkvs=null;
+		if(candidateFile==null && minHashBands==0){
+			Metrics.Phase keyCounting=Metrics.start("keyCounting");
+			if(adaptivePurging){
+				AdaptivePurging purging=new AdaptivePurging(obj);
+				purging.apply();
+				purging.printSummary();
+				Metrics.setValue("adaptivePairWiseThresh", purging.getCutoff());
+			}
+			bkvs=obj.buildValidCommonKeySet();
+			keyCounting.end(obj.getIDs1().size()+obj.getIDs2().size(), 0);
+		}
+		
+		Metrics.Phase blockBuilding=Metrics.start("blockBuilding");
+		CandidatePairs candidates;
+		if(candidateFile!=null)
+			candidates=new BilateralBlocksFile.Reader(candidateFile).toCandidatePairs(obj.getSortedIDs1(), 
+					obj.getSortedIDs2());
+		else if(minHashBands>0)
+			candidates=new MinHashBlocker(obj, minHashBands, minHashRows).buildCandidatePairs();
+		else if(prefixFilterJoin)
+			candidates=new PrefixFilterJoin(obj).join(threshold, strict, bkvs);
+		else if(metaBlockingWeighting>=0){
+			MetaBlocking metaBlocking=new MetaBlocking(obj, metaBlockingWeighting, metaBlockingPruning);
+			candidates=metaBlocking.buildCandidatePairs(bkvs);
+			Metrics.addCount("metaBlockingEdges", metaBlocking.getNumEdges());
+		}
+		else
+			candidates=obj.buildCandidatePairs(bkvs);
+		blockBuilding.end(0, candidates.size());
+		return candidates;
+	}
+	
 	/*
 	 * This function is hard-coded. nonStrictOutFile contains those pairs of records
 	 * that have Jaccard score >=0.5, while for strictOutFile it is >0.5. We will
@@ -34,125 +165,40 @@ public class JaccardMatcher {
 	 */
 	public static void hardCodedPointFive(String instanceFile1, String instanceFile2,
 			String nonStrictOutFile, String strictOutFile){
-		long start=System.currentTimeMillis();
-		BlockPurging obj=new BlockPurging(instanceFile1, instanceFile2);
-		PrintWriter nonStrictOut=null;
-		PrintWriter strictOut=null;
-		Map<String, Set<String>> bilateralBlocks=obj.buildBilateralBlocks(obj.buildValidCommonKeySet());
-		ArrayList<String> id1s=new ArrayList<String>(bilateralBlocks.keySet());
-		Map<String, Integer> id1Map=BlockPurging.buildIDMap(obj.getIDs1());
-		Map<String, Integer> id2Map=BlockPurging.buildIDMap(obj.getIDs2());
-		
-		
-		Collections.sort(id1s);
-		try{
-			nonStrictOut=new PrintWriter(new File(nonStrictOutFile));
-			strictOut=new PrintWriter(new File(strictOutFile));
-			
-			
-			for(String id1: id1s){
-				Set<String> instance1=obj.getInstances1(id1Map.get(id1));
-				ArrayList<String> ids2=new ArrayList<String>(bilateralBlocks.get(id1));
-				Collections.sort(ids2);
-				for(String id2: ids2){
-					Set<String> instance2=obj.getInstances2(id2Map.get(id2));
-					double jaccardScore=Exploratory.computeJaccard(instance1, instance2);
-					if(jaccardScore<0.5)
-						continue;
-					else if(jaccardScore==0.5){
-						nonStrictOut.println(id1+","+id2+","+jaccardScore);
-					}else{
-						nonStrictOut.println(id1+","+id2+","+jaccardScore);
-						strictOut.println(id1+","+id2+","+jaccardScore);
-					}
-				}
-			}
-			
-		}catch(IOException e){
-			e.printStackTrace();
-		}finally{
-			nonStrictOut.close();
-			strictOut.close();
-		}
-		
-		long end=System.currentTimeMillis();
-		double minutesTaken=(1.0*(end-start))/(60000);
-		System.out.println("Matcher complete. Time taken "+minutesTaken+" minutes");
-		
+		hardCodedPointFive(instanceFile1, instanceFile2, nonStrictOutFile, strictOutFile, 1);
+	}
+	
+	/*
+	 * Same as above, but instances are loaded and pairs are scored on numThreads
+	 * threads. The output files are identical to those of the serial version.
+	 */
+	public static void hardCodedPointFive(String instanceFile1, String instanceFile2,
+			String nonStrictOutFile, String strictOutFile, int numThreads){
+		List<ThresholdBand> bands=new ArrayList<ThresholdBand>();
+		bands.add(new ThresholdBand(0.5, false, nonStrictOutFile));
+		bands.add(new ThresholdBand(0.5, true, strictOutFile));
+		writeBands(instanceFile1, instanceFile2, null, bands, null, true, numThreads);
 	}
 
 
 	/*
- * This function outputs the three submission files for the FFIEC-LEI task, with 
- * Jaccard scores >0.4, >=0.5, and >0.5 respectively. All files
- * are generated deterministically and simultaneously. The three files above
- * are named per the following guidelines:
- * UT_AUSTIN_FFIEC_LEI_TP_{1,2,3} for the three files above.
- * 
- */
-public static void submissionFFIECLEI(String instanceFile1, String instanceFile2,
-		String outputFolder){
-	long start=System.currentTimeMillis();
-	int field=1;
-	Set<Integer> fieldsToPopulate=new HashSet<Integer>();
-	fieldsToPopulate.add(field);
-	BlockPurging obj=new BlockPurging(instanceFile1, instanceFile2, fieldsToPopulate);
-	PrintWriter file1=null;
-	PrintWriter file2=null;
-	PrintWriter file3=null;
-	
-	Map<String, Set<String>> bilateralBlocks=obj.buildBilateralBlocks(obj.buildValidCommonKeySet());
-	ArrayList<String> id1s=new ArrayList<String>(bilateralBlocks.keySet());
-	Map<String, Integer> id1Map=BlockPurging.buildIDMap(obj.getIDs1());
-	Map<String, Integer> id2Map=BlockPurging.buildIDMap(obj.getIDs2());
-	
-	
-	Collections.sort(id1s);
-	try{
-		file1=new PrintWriter(new File(outputFolder+"UT_AUSTIN_FFIEC_LEI_TP_1"));
-		file2=new PrintWriter(new File(outputFolder+"UT_AUSTIN_FFIEC_LEI_TP_2"));
-		file3=new PrintWriter(new File(outputFolder+"UT_AUSTIN_FFIEC_LEI_TP_3"));
-		String header="FFIEC_IDRSSD,LEI_LEI";
-		file1.println(header);
-		file2.println(header);
-		file3.println(header);
-		
-		for(String id1: id1s){
-			Set<String> instance1=obj.getInstances1(id1Map.get(id1));
-			ArrayList<String> ids2=new ArrayList<String>(bilateralBlocks.get(id1));
-			Collections.sort(ids2);
-			for(String id2: ids2){
-				Set<String> instance2=obj.getInstances2(id2Map.get(id2));
-				double jaccardScore=Exploratory.computeJaccard(instance1, instance2);
-				if(jaccardScore<=0.4)
-					continue;
-				else if(jaccardScore<0.5){
-					file1.println(id1+","+id2);
-				}
-				else if(jaccardScore==0.5){
-					file1.println(id1+","+id2);
-					file2.println(id1+","+id2);
-				}else{
-					file1.println(id1+","+id2);
-					file2.println(id1+","+id2);
-					file3.println(id1+","+id2);
-				}
-			}
-		}
-		
-	}catch(IOException e){
-		e.printStackTrace();
-	}finally{
-		file1.close();
-		file2.close();
-		file3.close();
+	 * This function outputs the three submission files for the FFIEC-LEI task, with 
+	 * Jaccard scores >0.4, >=0.5, and >0.5 respectively. All files
+	 * are generated deterministically and simultaneously. The three files above
+	 * are named per the following guidelines:
+	 * UT_AUSTIN_FFIEC_LEI_TP_{1,2,3} for the three files above.
+	 * 
+	 */
+	public static void submissionFFIECLEI(String instanceFile1, String instanceFile2,
+			String outputFolder){
+		submissionFFIECLEI(instanceFile1, instanceFile2, outputFolder, 1);
 	}
 	
-	long end=System.currentTimeMillis();
-	double minutesTaken=(1.0*(end-start))/(60000);
-	System.out.println("Matcher complete. Time taken "+minutesTaken+" minutes");
-	
-}
+	public static void submissionFFIECLEI(String instanceFile1, String instanceFile2,
+			String outputFolder, int numThreads){
+		writeSubmissionFiles(instanceFile1, instanceFile2, outputFolder+"UT_AUSTIN_FFIEC_LEI_TP_", 
+				"FFIEC_IDRSSD,LEI_LEI", numThreads);
+	}
 
 
 	/*
@@ -165,73 +211,258 @@ public static void submissionFFIECLEI(String instanceFile1, String instanceFile2
 	 */
 	public static void submissionFFIECSEC(String instanceFile1, String instanceFile2,
 			String outputFolder){
-		long start=System.currentTimeMillis();
+		submissionFFIECSEC(instanceFile1, instanceFile2, outputFolder, 1);
+	}
+	
+	public static void submissionFFIECSEC(String instanceFile1, String instanceFile2,
+			String outputFolder, int numThreads){
+		writeSubmissionFiles(instanceFile1, instanceFile2, outputFolder+"UT_AUSTIN_FFIEC_SEC_TP_", 
+				"FFIEC_IDRSSD,SEC_CIK", numThreads);
+	}
+	
+	/*
+	 * Shared body of the FFIEC-LEI and FFIEC-SEC submissions. Only field 1 is
+	 * considered, and the three files are named filePrefix{1,2,3}.
+	 */
+	private static void writeSubmissionFiles(String instanceFile1, String instanceFile2,
+			String filePrefix, String header, int numThreads){
 		int field=1;
 		Set<Integer> fieldsToPopulate=new HashSet<Integer>();
 		fieldsToPopulate.add(field);
-		BlockPurging obj=new BlockPurging(instanceFile1, instanceFile2, fieldsToPopulate);
-		PrintWriter file1=null;
-		PrintWriter file2=null;
-		PrintWriter file3=null;
+		List<ThresholdBand> bands=new ArrayList<ThresholdBand>();
+		bands.add(new ThresholdBand(0.4, true, filePrefix+"1"));
+		bands.add(new ThresholdBand(0.5, false, filePrefix+"2"));
+		bands.add(new ThresholdBand(0.5, true, filePrefix+"3"));
+		writeBands(instanceFile1, instanceFile2, fieldsToPopulate, bands, header, false, numThreads);
+	}
+	
+	/*
+	 * This function writes every pair in the bilateral blocks to each of the given
+	 * bands it passes, in a single scoring pass, e.g. to sweep many thresholds at
+	 * once. Bands must be sorted (see ThresholdBand). If fieldsToPopulate is null,
+	 * all fields are considered. header may be null, and if writeScores is set,
+	 * each line gets the score as a third column. With numThreads>1, instances are
+	 * loaded and pairs are scored in parallel; the files are identical to those of
+	 * a serial run. If scoring or writing fails, the band files are incomplete, and
+	 * the failure is thrown rather than reported as complete.
+	 */
+	public static void writeBands(String instanceFile1, String instanceFile2, 
+			Set<Integer> fieldsToPopulate, List<ThresholdBand> bands, String header, 
+			boolean writeScores, int numThreads){
+		long start=System.currentTimeMillis();
+		Metrics.startRun();
+		BlockPurging obj=BlockPurging.load(instanceFile1, instanceFile2, fieldsToPopulate, numThreads);
+		BandedPairSink sink=null;
 		
-		Map<String, Set<String>> bilateralBlocks=obj.buildBilateralBlocks(obj.buildValidCommonKeySet());
-		ArrayList<String> id1s=new ArrayList<String>(bilateralBlocks.keySet());
-		Map<String, Integer> id1Map=BlockPurging.buildIDMap(obj.getIDs1());
-		Map<String, Integer> id2Map=BlockPurging.buildIDMap(obj.getIDs2());
+		try{
+			sink=new BandedPairSink(bands, header, writeScores, writeQueueBuffers);
+			ThresholdBand lowest=sink.getLowestBand();
+			CandidatePairs candidates=buildCandidates(obj, lowest.getThreshold(), lowest.isStrict());
+			scoreIntoBands(obj, candidates, sink, 0, numThreads);
+			
+		}catch(IOException e){
+			throw new RuntimeException("Matcher failed; the band files are incomplete", e);
+		}finally{
+			closeSink(sink);
+		}
 		
+		long end=System.currentTimeMillis();
+		double minutesTaken=(1.0*(end-start))/(60000);
+		System.out.println("Matcher complete. Time taken "+minutesTaken+" minutes");
+		Metrics.endRun("writeBands");
+		
+	}
+	
+	/*
+	 * Like writeBands with the single band, except that only the k best-scoring
+	 * pairs of each id1 in the band are written, best first, with ties broken by
+	 * id2 (see ParallelScorer.scoreTopK). Pairs that cannot beat the k-th score
+	 * so far are not scored, so with a small k this is much cheaper than writing
+	 * every pair and filtering afterwards.
+	 */
+	public static void writeTopK(String instanceFile1, String instanceFile2, 
+			Set<Integer> fieldsToPopulate, int k, ThresholdBand band, String header, 
+			boolean writeScores, int numThreads){
+		long start=System.currentTimeMillis();
+		Metrics.startRun();
+		BlockPurging obj=BlockPurging.load(instanceFile1, instanceFile2, fieldsToPopulate, numThreads);
+		BandedPairSink sink=null;
 		
-		Collections.sort(id1s);
 		try{
-			file1=new PrintWriter(new File(outputFolder+"UT_AUSTIN_FFIEC_SEC_TP_1"));
-			file2=new PrintWriter(new File(outputFolder+"UT_AUSTIN_FFIEC_SEC_TP_2"));
-			file3=new PrintWriter(new File(outputFolder+"UT_AUSTIN_FFIEC_SEC_TP_3"));
-			String header="FFIEC_IDRSSD,SEC_CIK";
-			file1.println(header);
-			file2.println(header);
-			file3.println(header);
+			sink=new BandedPairSink(Collections.singletonList(band), header, writeScores, 
+					writeQueueBuffers);
+			CandidatePairs candidates=buildCandidates(obj, band.getThreshold(), band.isStrict());
+			scoreIntoBands(obj, candidates, sink, k, numThreads);
 			
-			for(String id1: id1s){
-				Set<String> instance1=obj.getInstances1(id1Map.get(id1));
-				ArrayList<String> ids2=new ArrayList<String>(bilateralBlocks.get(id1));
-				Collections.sort(ids2);
-				for(String id2: ids2){
-					Set<String> instance2=obj.getInstances2(id2Map.get(id2));
-					double jaccardScore=Exploratory.computeJaccard(instance1, instance2);
-					if(jaccardScore<=0.4)
-						continue;
-					else if(jaccardScore<0.5){
-						file1.println(id1+","+id2);
-					}
-					else if(jaccardScore==0.5){
-						file1.println(id1+","+id2);
-						file2.println(id1+","+id2);
-					}else{
-						file1.println(id1+","+id2);
-						file2.println(id1+","+id2);
-						file3.println(id1+","+id2);
-					}
-				}
+		}catch(IOException e){
+			throw new RuntimeException("Matcher failed; the band files are incomplete", e);
+		}finally{
+			closeSink(sink);
+		}
+		
+		long end=System.currentTimeMillis();
+		double minutesTaken=(1.0*(end-start))/(60000);
+		System.out.println("Matcher complete. Time taken "+minutesTaken+" minutes");
+		Metrics.endRun("writeTopK");
+		
+	}
+	
+	/*
+	 * Scores the candidates into the bands, keeping only the k best pairs of each
+	 * id1 unless k is 0. With metrics enabled, the time spent in the sink is
+	 * reported as the write timer, and each band's pair count as a counter.
+	 */
+	private static void scoreIntoBands(BlockPurging obj, CandidatePairs candidates, 
+			final BandedPairSink sink, int k, int numThreads) throws IOException{
+		ThresholdBand lowest=sink.getLowestBand();
+		final boolean timed=Metrics.isEnabled();
+		Metrics.Phase scoring=Metrics.start("scoring");
+		ParallelScorer.PairHandler handler=new ParallelScorer.PairHandler(){
+			public void handle(String id1, String id2, double jaccardScore) throws IOException{
+				long start=timed ? System.nanoTime() : 0;
+				sink.accept(id1, id2, jaccardScore);
+				if(timed)
+					Metrics.addTime("write", System.nanoTime()-start);
+			}
+		};
+		ParallelScorer scorer=new ParallelScorer(obj, candidates, numThreads);
+		if(k>0)
+			scorer.scoreTopK(k, lowest.getThreshold(), lowest.isStrict(), handler);
+		else
+			scorer.score(lowest.getThreshold(), lowest.isStrict(), handler);
+		scoring.end(0, candidates.size());
+		for(int i=0; i<sink.numBands(); i++)
+			Metrics.addCount("band "+sink.getBand(i), sink.getCount(i));
+	}
+	
+	/*
+	 * Returns whether the band files were all written and closed.
+	 */
+	private static boolean closeSink(BandedPairSink sink){
+		Metrics.Phase writing=Metrics.start("writing");
+		boolean closed=false;
+		try{
+			if(sink!=null){
+				sink.close();
+				closed=true;
 			}
-			
 		}catch(IOException e){
 			e.printStackTrace();
+		}
+		writing.end();
+		return closed;
+	}
+	
+	/*
+	 * Brings band files written by writeBands up to date after a delta (see
+	 * IncrementalBlocking), scoring only the pairs the delta may have changed,
+	 * plus the previous matches that it cannot have changed, which are few. The
+	 * files must have been written with the same bands, header, writeScores and
+	 * fields, from the state the delta was applied to. Afterwards they are
+	 * identical to what writeBands would write for the updated inputs, and the
+	 * delta is committed, so the same files can be brought up to date again after
+	 * the next one. The prefixFilterJoin and candidateFile settings do not apply
+	 * here. Files written with minHash blocking hold only the pairs that MinHash
+	 * found, which the bilateral blocks rescored here do not reproduce.
+	 * Meta-blocking prunes by weights over the whole blocking graph, and
+	 * adaptivePurging picks pairWiseThresh from all block sizes, both of which a
+	 * delta can change anywhere. The files cannot be rescored with any of these
+	 * three set.
+	 */
+	public static void rescoreBands(IncrementalBlocking delta, List<ThresholdBand> bands, 
+			String header, boolean writeScores, int numThreads){
+		if(minHashBands>0)
+			throw new IllegalStateException("rescoreBands cannot reproduce minHash blocking; rerun writeBands instead");
+		if(metaBlockingWeighting>=0)
+			throw new IllegalStateException("rescoreBands cannot reproduce meta-blocking; rerun writeBands instead");
+		if(adaptivePurging)
+			throw new IllegalStateException("rescoreBands cannot reproduce adaptivePurging; rerun writeBands instead");
+		long start=System.currentTimeMillis();
+		Metrics.startRun();
+		Metrics.Phase compacting=Metrics.start("compacting");
+		BlockPurging obj=delta.getBlockPurging();
+		compacting.end(obj.getIDs1().size()+obj.getIDs2().size(), 0);
+		BandedPairSink sink=null;
+		boolean closed=false;
+		
+		try{
+			//the previous matches must be read before the sink truncates the files
+			Metrics.Phase blockBuilding=Metrics.start("blockBuilding");
+			CandidatePairs previous=readMatches(obj, bands.get(0).getOutFile(), header!=null);
+			CandidatePairs unaffected=delta.retainUnaffectedCandidates(previous);
+			CandidatePairs affected=delta.buildAffectedPairs();
+			CandidatePairs.Builder candidates=new CandidatePairs.Builder();
+			for(int i=0; i<unaffected.size(); i++)
+				candidates.add(unaffected.first(i), unaffected.second(i));
+			for(int i=0; i<affected.size(); i++)
+				candidates.add(affected.first(i), affected.second(i));
+			System.out.println("Previous matches kept : "+unaffected.size()+" of "+previous.size());
+			System.out.println("Pairs affected by delta : "+affected.size());
+			CandidatePairs rescored=candidates.build();
+			blockBuilding.end(0, rescored.size());
+			Metrics.addCount("previousMatches", previous.size());
+			Metrics.addCount("affectedPairs", affected.size());
+			
+			sink=new BandedPairSink(bands, header, writeScores, writeQueueBuffers);
+			scoreIntoBands(obj, rescored, sink, 0, numThreads);
+			
+		}catch(IOException e){
+			throw new RuntimeException("Matcher failed; the band files are incomplete", e);
 		}finally{
-			file1.close();
-			file2.close();
-			file3.close();
+			closed=closeSink(sink);
 		}
+		if(closed)
+			delta.commit();
 		
 		long end=System.currentTimeMillis();
 		double minutesTaken=(1.0*(end-start))/(60000);
 		System.out.println("Matcher complete. Time taken "+minutesTaken+" minutes");
-		
+		Metrics.endRun("rescoreBands");
+	}
+	
+	/*
+	 * Reads the id1,id2 columns of a band file as ID ordinals of obj. Pairs whose
+	 * IDs are no longer in obj are dropped.
+	 */
+	private static CandidatePairs readMatches(BlockPurging obj, String bandFile, boolean hasHeader) 
+			throws IOException{
+		SortedIDs ids1=obj.getSortedIDs1();
+		SortedIDs ids2=obj.getSortedIDs2();
+		CandidatePairs.Builder matches=new CandidatePairs.Builder();
+		CsvScanner fields=new CsvScanner();
+		Scanner in=new Scanner(new FileReader(bandFile));
+		try{
+			if(hasHeader && in.hasNextLine())
+				in.nextLine();
+			while(in.hasNextLine()){
+				fields.reset(in.nextLine());
+				int ordinal1=ids1.ordinalOf(fields.fieldString(0));
+				int ordinal2=ids2.ordinalOf(fields.fieldString(1));
+				if(ordinal1>=0 && ordinal2>=0)
+					matches.add(ordinal1, ordinal2);
+			}
+		}finally{
+			in.close();
+		}
+		return matches.build();
 	}
 
 
+	/*
+	 * The memory the join and sort of the submission files may use before they
+	 * spill to temporary files, in the folder of the output file.
+	 */
+	static long joinMemoryBudgetBytes=Runtime.getRuntime().maxMemory()/4;
+	
+	public static void setJoinMemoryBudget(long joinMemoryBudgetBytes){
+		JaccardMatcher.joinMemoryBudgetBytes=joinMemoryBudgetBytes;
+	}
+	
 	/*
 	 * This function outputs one submission file for the FFIEC-LEI-SEC task 
 	 * ;it simply joins the respective TP files of the
-	 * Task 1 and 2 submissions. Nothing complicated.
+	 * Task 1 and 2 submissions on FFIEC, with a HashJoin, so neither file
+	 * has to fit in memory. The output is sorted.
 	 * 
 	 * 
 	 *  
@@ -239,47 +470,31 @@ public static void submissionFFIECLEI(String instanceFile1, String instanceFile2
 	public static void submissionFFIECLEISEC(String task1File, String task2File,
 			String outputFile){
 		long start=System.currentTimeMillis();
-		PrintWriter file=null;
-		
-		
-		Map<String, ArrayList<String>> FFIECSEC=buildFFIECMap(task2File);
-		Map<String, ArrayList<String>> FFIECLEI=buildFFIECMap(task1File);
+		Metrics.startRun();
+		Metrics.Phase joining=Metrics.start("join");
 		
 		try{
-			file=new PrintWriter(new File(outputFile));
-			
-			String header="FFIEC_IDRSSD,LEI_LEI,SEC_CIK";
-			file.println(header);
-			
-			
-			for(String ffiec: FFIECSEC.keySet()){
-				if(!FFIECLEI.containsKey(ffiec))
-					continue;
-				
-				for(int i=0; i<FFIECLEI.get(ffiec).size(); i++)
-					for(int j=0; j<FFIECSEC.get(ffiec).size(); j++)
-						file.println(ffiec+","+FFIECLEI.get(ffiec).get(i)+","+FFIECSEC.get(ffiec).get(j));
-					
-				
-			}
+			HashJoin join=new HashJoin(joinMemoryBudgetBytes, 
+					new File(outputFile).getAbsoluteFile().getParentFile());
+			join.join(Arrays.asList(task1File, task2File), outputFile, "FFIEC_IDRSSD,LEI_LEI,SEC_CIK");
 			
 		}catch(IOException e){
 			e.printStackTrace();
-		}finally{
-			file.close();
-			
 		}
+		joining.end();
 		
 		long end=System.currentTimeMillis();
 		double minutesTaken=(1.0*(end-start))/(60000);
 		System.out.println("Matcher complete. Time taken "+minutesTaken+" minutes");
+		Metrics.endRun("submissionFFIECLEISEC");
 		
 	}
 	
 	/*
 	 * This function outputs one submission file for the LEI-SEC task 
 	 * ;it simply projects the respective TP files of the
-	 * Task 3 submissions. Nothing complicated.
+	 * Task 3 submissions. Nothing complicated. The projection is sorted
+	 * and deduplicated with an ExternalSorter, so it need not fit in memory.
 	 * 
 	 * 
 	 *  
@@ -287,72 +502,40 @@ public static void submissionFFIECLEI(String instanceFile1, String instanceFile2
 	public static void submissionLEISEC(String task3File,
 			String outputFile){
 		long start=System.currentTimeMillis();
-		PrintWriter file=null;
+		Metrics.startRun();
+		Metrics.Phase projecting=Metrics.start("projection");
 		Scanner in=null;
-		Set<String> projection=new HashSet<String>();
+		CsvScanner fields=new CsvScanner();
+		ExternalSorter projection=new ExternalSorter(joinMemoryBudgetBytes, 
+				new File(outputFile).getAbsoluteFile().getParentFile(), true);
+		long rows=0;
 		try{
 			in=new Scanner(new FileReader(task3File));
 			if(in.hasNextLine())
 				in.nextLine();
 			while(in.hasNextLine()){
-				String[] fields=in.nextLine().split(",");
-				projection.add(fields[1]+","+fields[2]);
+				fields.reset(in.nextLine());
+				projection.add(CsvScanner.escape(fields.fieldString(1))+","
+						+CsvScanner.escape(fields.fieldString(2)));
+				rows++;
 			}
-		}catch(IOException e){
-			e.printStackTrace();
-		}finally{in.close();}
-		ArrayList<String> p=new ArrayList<String>(projection);
-		Collections.sort(p);
-		
-		
-		
-		try{
-			file=new PrintWriter(new File(outputFile));
 			
 			String header="LEI_LEI,SEC_CIK";
-			file.println(header);
-			
-			
-			for(String element: p)
-				file.println(element);
-				
-			
+			projection.writeTo(outputFile, header);
 			
 		}catch(IOException e){
 			e.printStackTrace();
 		}finally{
-			file.close();
+			if(in!=null)
+				in.close();
 			
 		}
+		projecting.end(rows, 0);
 		
 		long end=System.currentTimeMillis();
 		double minutesTaken=(1.0*(end-start))/(60000);
 		System.out.println("Matcher complete. Time taken "+minutesTaken+" minutes");
+		Metrics.endRun("submissionLEISEC");
 		
 	}
-
-
-	/*
-	 * This function takes a task 1 or 2 output file as input, ignores header,
-	 * and ALWAYS assumes first column is FFIEC. It builds a map with FFIEC ids
-	 * as keys, and second column values as values, and returns the map.
-	 */
-	private static Map<String, ArrayList<String>> buildFFIECMap(String file){
-		Map<String, ArrayList<String>> map=new HashMap<String, ArrayList<String>>();
-		Scanner in=null;
-		try{
-			in=new Scanner(new FileReader(file));
-			if(in.hasNextLine())
-				in.nextLine();
-			while(in.hasNextLine()){
-				String[] fields=in.nextLine().split(",");
-				if(!map.containsKey(fields[0]))
-					map.put(fields[0], new ArrayList<String>());
-				map.get(fields[0]).add(fields[1]);
-			}
-		}catch(Exception e){
-			e.printStackTrace();
-		}finally{in.close();}
-		return map;
-	}
 }
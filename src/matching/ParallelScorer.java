@@ -0,0 +1,286 @@
+package matching;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import blocking.BlockPurging;
+import blocking.CandidatePairs;
+import blocking.SortedIDs;
+
+public class ParallelScorer {
+
+	/**
+	 * Scores candidate pairs on several threads, while keeping the deterministic
+	 * order of the serial matcher: id1s in sorted order, and for each id1, its id2s
+	 * in sorted order, which is the order of the pairs in CandidatePairs. The pairs
+	 * are cut into chunks of whole id1 groups that are scored on a worker pool,
+	 * and the results are handed to a PairHandler on the calling thread, one chunk
+	 * at a time and in chunk order. Output written from the handler is therefore
+	 * byte-identical to a serial run. Scoring works on ID ordinals and rows only;
+	 * ID strings are resolved when a pair is handed over.
+	 *
+	 * In top-k mode, only the k best pairs of each id1 are handed over, best
+	 * first. Since the Jaccard score of two sets is at most min(|A|,|B|)/max(|A|,|B|),
+	 * the id2s of an id1 are scored in decreasing order of that bound, and once k
+	 * pairs are kept, an id2 whose bound is below the k-th score is not scored at
+	 * all; the others are scored with the k-th score as the threshold, so the
+	 * merge stops early.
+	 */
+
+	/*
+	 * Receives the pairs that pass the threshold, on the calling thread.
+	 */
+	public interface PairHandler{
+		void handle(String id1, String id2, double jaccardScore) throws IOException;
+	}
+
+	static final int CHUNK_ID1S=256;
+
+	BlockPurging obj;
+	CandidatePairs candidates;
+	SortedIDs ids1;
+	SortedIDs ids2;
+	int numThreads;
+
+	public ParallelScorer(BlockPurging obj, CandidatePairs candidates, int numThreads){
+		this.obj=obj;
+		this.candidates=candidates;
+		this.ids1=obj.getSortedIDs1();
+		this.ids2=obj.getSortedIDs2();
+		this.numThreads=Math.max(1, numThreads);
+	}
+
+	/*
+	 * The scored pairs of one chunk, as ID ordinals, in output order.
+	 */
+	static class ScoredChunk{
+		int size=0;
+		int[] ordinals1=new int[16];
+		int[] ordinals2=new int[16];
+		double[] scores=new double[16];
+
+		void add(int ordinal1, int ordinal2, double score){
+			if(size==scores.length){
+				ordinals1=Arrays.copyOf(ordinals1, 2*size);
+				ordinals2=Arrays.copyOf(ordinals2, 2*size);
+				scores=Arrays.copyOf(scores, 2*size);
+			}
+			ordinals1[size]=ordinal1;
+			ordinals2[size]=ordinal2;
+			scores[size++]=score;
+		}
+	}
+
+	/*
+	 * Scores every pair and passes those with a Jaccard score above threshold to
+	 * handler. If strict, a score equal to threshold does not pass.
+	 */
+	public void score(double threshold, boolean strict, PairHandler handler) throws IOException{
+		score(0, threshold, strict, handler);
+	}
+
+	/*
+	 * Passes to handler, for each id1, the k pairs with the highest Jaccard scores
+	 * above threshold, best first. Ties are broken by id2, in sorted order, so the
+	 * pairs do not depend on the number of threads either.
+	 */
+	public void scoreTopK(int k, double threshold, boolean strict, PairHandler handler) throws IOException{
+		if(k<1)
+			throw new IllegalArgumentException("k must be at least 1, got "+k);
+		score(k, threshold, strict, handler);
+	}
+
+	/*
+	 * Every passing pair is handed over if k is 0.
+	 */
+	private void score(int k, double threshold, boolean strict, PairHandler handler) throws IOException{
+		if(numThreads==1){
+			for(int from=0; from<candidates.size(); ){
+				int to=chunkEnd(from);
+				emit(scoreChunk(from, to, k, threshold, strict), handler);
+				from=to;
+			}
+			return;
+		}
+
+		ExecutorService workers=Executors.newFixedThreadPool(numThreads);
+		//bounds the number of scored chunks held in memory
+		ArrayDeque<Future<ScoredChunk>> pending=new ArrayDeque<Future<ScoredChunk>>();
+		try{
+			for(int from=0; from<candidates.size(); ){
+				int to=chunkEnd(from);
+				if(pending.size()>=4*numThreads)
+					emit(pending.poll().get(), handler);
+				pending.add(workers.submit(scoreTask(from, to, k, threshold, strict)));
+				from=to;
+			}
+			while(!pending.isEmpty())
+				emit(pending.poll().get(), handler);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while scoring");
+		}catch(ExecutionException e){
+			throw rethrow(e.getCause());
+		}finally{
+			workers.shutdownNow();
+		}
+	}
+
+	/*
+	 * A failed worker fails the whole run, as the pairs of its chunk are lost:
+	 * unchecked exceptions as they are, and anything else as an IOException.
+	 */
+	private static IOException rethrow(Throwable cause){
+		if(cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		if(cause instanceof Error)
+			throw (Error) cause;
+		if(cause instanceof IOException)
+			return (IOException) cause;
+		return new IOException("Scoring failed", cause);
+	}
+
+	/*
+	 * A chunk spans CHUNK_ID1S id1 groups, starting at pair index from.
+	 */
+	private int chunkEnd(int from){
+		int to=from;
+		for(int groups=0; groups<CHUNK_ID1S && to<candidates.size(); groups++)
+			to=candidates.groupEnd(to);
+		return to;
+	}
+
+	private Callable<ScoredChunk> scoreTask(final int from, final int to, final int k, 
+			final double threshold, final boolean strict){
+		return new Callable<ScoredChunk>(){
+			public ScoredChunk call(){
+				return scoreChunk(from, to, k, threshold, strict);
+			}
+		};
+	}
+
+	ScoredChunk scoreChunk(int from, int to, int k, double threshold, boolean strict){
+		ScoredChunk chunk=new ScoredChunk();
+		if(k>0){
+			TopK best=new TopK(k);
+			for(int i=from; i<to; i=candidates.groupEnd(i))
+				scoreGroupTopK(i, candidates.groupEnd(i), best, threshold, strict, chunk);
+			return chunk;
+		}
+		int[] instance1=null;
+		int previousOrdinal1=-1;
+		for(int i=from; i<to; i++){
+			long pair=candidates.get(i);
+			int ordinal1=CandidatePairs.first(pair);
+			int ordinal2=CandidatePairs.second(pair);
+			if(ordinal1!=previousOrdinal1){
+				instance1=obj.getTokenIds1(ids1.rowOf(ordinal1));
+				previousOrdinal1=ordinal1;
+			}
+			int[] instance2=obj.getTokenIds2(ids2.rowOf(ordinal2));
+			double jaccardScore=Exploratory.computeJaccardAbove(instance1, instance2, threshold, strict);
+			if(jaccardScore>=0)
+				chunk.add(ordinal1, ordinal2, jaccardScore);
+		}
+		return chunk;
+	}
+
+	/*
+	 * The best pairs of one id1 so far, best first: by score, then by id2.
+	 */
+	static class TopK{
+		int size=0;
+		int[] ordinals2;
+		double[] scores;
+
+		TopK(int k){
+			ordinals2=new int[k];
+			scores=new double[k];
+		}
+
+		boolean isFull(){
+			return size==scores.length;
+		}
+
+		double lowestScore(){
+			return scores[size-1];
+		}
+
+		void offer(int ordinal2, double score){
+			int i=size;
+			while(i>0 && (scores[i-1]<score || (scores[i-1]==score && ordinals2[i-1]>ordinal2)))
+				i--;
+			if(i==scores.length)
+				return;
+			int last=Math.min(size, scores.length-1);
+			System.arraycopy(scores, i, scores, i+1, last-i);
+			System.arraycopy(ordinals2, i, ordinals2, i+1, last-i);
+			scores[i]=score;
+			ordinals2[i]=ordinal2;
+			if(size<scores.length)
+				size++;
+		}
+	}
+
+	/*
+	 * Scores the pairs from..to of one id1 in decreasing order of their size bound,
+	 * and adds its best k to chunk.
+	 */
+	private void scoreGroupTopK(int from, int to, TopK best, double threshold, boolean strict,
+			ScoredChunk chunk){
+		int ordinal1=candidates.first(from);
+		int[] instance1=obj.getTokenIds1(ids1.rowOf(ordinal1));
+		//the float bits of a non-negative bound order like the bound itself
+		long[] order=new long[to-from];
+		for(int i=from; i<to; i++){
+			int size2=obj.getTokenIds2(ids2.rowOf(candidates.second(i))).length;
+			order[i-from]=((long) (Integer.MAX_VALUE-Float.floatToIntBits((float) sizeBound(instance1.length, size2)))<<32) 
+					| (i-from);
+		}
+		Arrays.sort(order);
+
+		best.size=0;
+		for(long entry: order){
+			int i=from+(int) entry;
+			int ordinal2=candidates.second(i);
+			int[] instance2=obj.getTokenIds2(ids2.rowOf(ordinal2));
+			double jaccardScore;
+			if(best.isFull()){
+				//a pair tying the k-th score may still replace it, if its id2 sorts first
+				double lowest=best.lowestScore();
+				if(sizeBound(instance1.length, instance2.length)<lowest)
+					continue;
+				jaccardScore=Exploratory.computeJaccardAbove(instance1, instance2, lowest, false);
+				if(jaccardScore>=0 && (jaccardScore>threshold || (!strict && jaccardScore==threshold)))
+					best.offer(ordinal2, jaccardScore);
+			}else{
+				jaccardScore=Exploratory.computeJaccardAbove(instance1, instance2, threshold, strict);
+				if(jaccardScore>=0)
+					best.offer(ordinal2, jaccardScore);
+			}
+		}
+		for(int j=0; j<best.size; j++)
+			chunk.add(ordinal1, best.ordinals2[j], best.scores[j]);
+	}
+
+	/*
+	 * The highest Jaccard score two sets of these sizes can have.
+	 */
+	static double sizeBound(int size1, int size2){
+		int larger=Math.max(size1, size2);
+		return larger==0 ? 0 : 1.0*Math.min(size1, size2)/larger;
+	}
+
+	private void emit(ScoredChunk chunk, PairHandler handler) throws IOException{
+		for(int i=0; i<chunk.size; i++)
+			handler.handle(ids1.getID(chunk.ordinals1[i]), ids2.getID(chunk.ordinals2[i]), chunk.scores[i]);
+	}
+
+}
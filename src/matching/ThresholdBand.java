@@ -0,0 +1,48 @@
+package matching;
+
+public class ThresholdBand implements Comparable<ThresholdBand>{
+
+	/**
+	 * One output band of a BandedPairSink: the pairs whose Jaccard score is above
+	 * threshold, or equal to it if the band is not strict, are written to outFile.
+	 * Bands order by threshold, with the non-strict band first at equal
+	 * thresholds, so that a pair that passes a band passes every earlier one.
+	 */
+	
+	double threshold;
+	boolean strict;
+	String outFile;
+	
+	public ThresholdBand(double threshold, boolean strict, String outFile){
+		this.threshold=threshold;
+		this.strict=strict;
+		this.outFile=outFile;
+	}
+	
+	public boolean passes(double jaccardScore){
+		return jaccardScore>threshold || (!strict && jaccardScore==threshold);
+	}
+	
+	public double getThreshold(){
+		return threshold;
+	}
+	
+	public boolean isStrict(){
+		return strict;
+	}
+	
+	public String getOutFile(){
+		return outFile;
+	}
+	
+	public int compareTo(ThresholdBand other){
+		int result=Double.compare(threshold, other.threshold);
+		if(result!=0)
+			return result;
+		return strict==other.strict ? 0 : (strict ? 1 : -1);
+	}
+	
+	public String toString(){
+		return (strict ? ">" : ">=")+threshold+" -> "+outFile;
+	}
+}
@@ -0,0 +1,139 @@
+package metrics;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class JsonMetricsRegistry implements MetricsRegistry {
+
+	/**
+	 * Collects the metrics of a run, and writes them as one JSON object when the
+	 * run completes: the run name, the peak heap usage, the phases in order with
+	 * their rates, then the timers, counters and values sorted by name. Each run
+	 * is appended to outFile as a line of its own, or printed if outFile is null.
+	 */
+
+	String outFile;
+	ArrayList<PhaseMetrics> phases=new ArrayList<PhaseMetrics>();
+	ConcurrentHashMap<String, AtomicLong> timers=new ConcurrentHashMap<String, AtomicLong>();
+	ConcurrentHashMap<String, AtomicLong> counters=new ConcurrentHashMap<String, AtomicLong>();
+	ConcurrentHashMap<String, AtomicLong> values=new ConcurrentHashMap<String, AtomicLong>();
+
+	public JsonMetricsRegistry(String outFile){
+		this.outFile=outFile;
+	}
+
+	public synchronized void recordPhase(PhaseMetrics phase){
+		phases.add(phase);
+	}
+
+	public void addTime(String timer, long nanos){
+		add(timers, timer, nanos);
+	}
+
+	public void addCount(String counter, long delta){
+		add(counters, counter, delta);
+	}
+
+	public void setValue(String name, long value){
+		values.put(name, new AtomicLong(value));
+	}
+
+	private static void add(ConcurrentHashMap<String, AtomicLong> map, String name, long delta){
+		AtomicLong value=map.get(name);
+		if(value==null){
+			AtomicLong fresh=new AtomicLong();
+			value=map.putIfAbsent(name, fresh);
+			if(value==null)
+				value=fresh;
+		}
+		value.addAndGet(delta);
+	}
+
+	public synchronized void runComplete(String run, long peakHeapBytes){
+		String json=toJson(run, peakHeapBytes);
+		phases.clear();
+		timers.clear();
+		counters.clear();
+		values.clear();
+		if(outFile==null){
+			System.out.println(json);
+			return;
+		}
+		PrintWriter out=null;
+		try{
+			out=new PrintWriter(new OutputStreamWriter(new FileOutputStream(outFile, true), "UTF-8"));
+			out.println(json);
+		}catch(IOException e){
+			e.printStackTrace();
+		}finally{
+			if(out!=null)
+				out.close();
+		}
+	}
+
+	synchronized String toJson(String run, long peakHeapBytes){
+		StringBuilder json=new StringBuilder();
+		json.append("{\"run\":").append(quote(run));
+		json.append(",\"peakHeapBytes\":").append(peakHeapBytes);
+		json.append(",\"phases\":[");
+		for(int i=0; i<phases.size(); i++){
+			PhaseMetrics phase=phases.get(i);
+			if(i>0)
+				json.append(',');
+			json.append("{\"name\":").append(quote(phase.name));
+			json.append(",\"wallMillis\":").append(phase.wallNanos/1e6);
+			json.append(",\"rows\":").append(phase.rows);
+			json.append(",\"rowsPerSec\":").append(phase.perSecond(phase.rows));
+			json.append(",\"pairs\":").append(phase.pairs);
+			json.append(",\"pairsPerSec\":").append(phase.perSecond(phase.pairs));
+			json.append(",\"allocatedBytes\":").append(phase.allocatedBytes);
+			json.append(",\"allocatedBytesPerSec\":").append(
+					phase.allocatedBytes>=0 ? phase.perSecond(phase.allocatedBytes) : -1);
+			json.append('}');
+		}
+		json.append("],\"timersMillis\":{");
+		appendValues(json, timers, 1e6);
+		json.append("},\"counters\":{");
+		appendValues(json, counters, 1);
+		json.append("},\"values\":{");
+		appendValues(json, values, 1);
+		json.append("}}");
+		return json.toString();
+	}
+
+	private static void appendValues(StringBuilder json, Map<String, AtomicLong> values, double divisor){
+		boolean first=true;
+		for(Map.Entry<String, AtomicLong> entry: new TreeMap<String, AtomicLong>(values).entrySet()){
+			if(!first)
+				json.append(',');
+			first=false;
+			json.append(quote(entry.getKey())).append(':');
+			if(divisor==1)
+				json.append(entry.getValue().get());
+			else
+				json.append(entry.getValue().get()/divisor);
+		}
+	}
+
+	static String quote(String s){
+		StringBuilder quoted=new StringBuilder(s.length()+2).append('"');
+		for(int i=0; i<s.length(); i++){
+			char c=s.charAt(i);
+			if(c=='"' || c=='\\')
+				quoted.append('\\').append(c);
+			else if(c<0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+}
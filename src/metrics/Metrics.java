@@ -0,0 +1,136 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+
+public class Metrics {
+
+	/**
+	 * The entry point through which the pipeline reports its metrics. It forwards
+	 * everything to a pluggable MetricsRegistry, e.g. a JsonMetricsRegistry. No
+	 * registry is set by default, in which case every call returns at once and
+	 * nothing is measured.
+	 *
+	 * A run is bracketed by startRun and endRun, which reset and read the peak
+	 * heap usage. Within a run, start(phase) returns a Phase, whose end() records
+	 * the wall time of the phase and the bytes the calling thread allocated.
+	 */
+
+	static volatile MetricsRegistry registry=null;
+
+	public static void setRegistry(MetricsRegistry registry){
+		Metrics.registry=registry;
+	}
+
+	public static MetricsRegistry getRegistry(){
+		return registry;
+	}
+
+	public static boolean isEnabled(){
+		return registry!=null;
+	}
+
+	/*
+	 * A phase in progress.
+	 */
+	public static class Phase{
+		String name;
+		long startNanos;
+		long startAllocated;
+
+		Phase(){
+		}
+
+		Phase(String name){
+			this.name=name;
+			startAllocated=allocatedBytes();
+			startNanos=System.nanoTime();
+		}
+
+		public void end(){
+			end(0, 0);
+		}
+
+		public void end(long rows, long pairs){
+			long wallNanos=System.nanoTime()-startNanos;
+			MetricsRegistry current=registry;
+			if(current==null)
+				return;
+			long allocated=allocatedBytes();
+			if(allocated>=0 && startAllocated>=0)
+				allocated-=startAllocated;
+			else
+				allocated=-1;
+			current.recordPhase(new PhaseMetrics(name, wallNanos, rows, pairs, allocated));
+		}
+	}
+
+	/*
+	 * With no registry, a shared Phase that measures nothing, so that disabled
+	 * metrics cost no clock or allocation queries.
+	 */
+	static final Phase DISABLED=new Phase(){
+		public void end(long rows, long pairs){
+		}
+	};
+
+	public static Phase start(String phase){
+		if(!isEnabled())
+			return DISABLED;
+		return new Phase(phase);
+	}
+
+	public static void addTime(String timer, long nanos){
+		MetricsRegistry current=registry;
+		if(current!=null)
+			current.addTime(timer, nanos);
+	}
+
+	public static void addCount(String counter, long delta){
+		MetricsRegistry current=registry;
+		if(current!=null)
+			current.addCount(counter, delta);
+	}
+
+	public static void setValue(String name, long value){
+		MetricsRegistry current=registry;
+		if(current!=null)
+			current.setValue(name, value);
+	}
+
+	public static void startRun(){
+		if(registry==null)
+			return;
+		for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getType()==MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+	public static void endRun(String run){
+		MetricsRegistry current=registry;
+		if(current==null)
+			return;
+		long peakHeapBytes=0;
+		for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans())
+			if(pool.getType()==MemoryType.HEAP)
+				peakHeapBytes+=pool.getPeakUsage().getUsed();
+		current.runComplete(run, peakHeapBytes);
+	}
+
+	/*
+	 * The bytes allocated so far by the current thread, or -1 if the JVM does not
+	 * support measuring it.
+	 */
+	static long allocatedBytes(){
+		ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+		if(!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean sunThreads=(com.sun.management.ThreadMXBean) threads;
+		if(!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+}
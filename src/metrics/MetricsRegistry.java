@@ -0,0 +1,30 @@
+package metrics;
+
+public interface MetricsRegistry {
+
+	/**
+	 * Receives the metrics of the matching pipeline (see Metrics). Implementations
+	 * must be thread-safe, since timers and counters are updated from worker
+	 * threads. runComplete is called once at the end of every JaccardMatcher run,
+	 * after which the registry should start afresh.
+	 */
+
+	void recordPhase(PhaseMetrics phase);
+
+	/*
+	 * Adds time spent in a fine-grained step, such as parsing one row. The time
+	 * of concurrent calls adds up, so it can exceed wall time.
+	 */
+	void addTime(String timer, long nanos);
+
+	void addCount(String counter, long delta);
+
+	/*
+	 * Records a value chosen during the run, such as a threshold. Unlike a
+	 * counter, a later value replaces an earlier one.
+	 */
+	void setValue(String name, long value);
+
+	void runComplete(String run, long peakHeapBytes);
+
+}
@@ -0,0 +1,53 @@
+package metrics;
+
+public class PhaseMetrics {
+
+	/**
+	 * The measurements of one phase of a run: its wall time, the rows and pairs it
+	 * processed (0 if not applicable), and the bytes allocated by the thread that
+	 * ran it (-1 if the JVM cannot tell). Work done on worker threads is included
+	 * in the wall time, but not in the allocation.
+	 */
+
+	String name;
+	long wallNanos;
+	long rows;
+	long pairs;
+	long allocatedBytes;
+
+	public PhaseMetrics(String name, long wallNanos, long rows, long pairs, long allocatedBytes){
+		this.name=name;
+		this.wallNanos=wallNanos;
+		this.rows=rows;
+		this.pairs=pairs;
+		this.allocatedBytes=allocatedBytes;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public long getWallNanos(){
+		return wallNanos;
+	}
+
+	public long getRows(){
+		return rows;
+	}
+
+	public long getPairs(){
+		return pairs;
+	}
+
+	public long getAllocatedBytes(){
+		return allocatedBytes;
+	}
+
+	/*
+	 * Returns count per second of wall time, or 0 for an instantaneous phase.
+	 */
+	public double perSecond(long count){
+		return wallNanos>0 ? count*1e9/wallNanos : 0;
+	}
+
+}